@@ -0,0 +1,41 @@
+package rewards.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+// The CSVHandler and ProfileHandler entry points the screens call, against n students and
+// n profiles.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OperationsBenchmark {
+    @Param({"100", "10000", "1000000"})
+    int rows;
+
+    @Param({"store.coldLoad", "CSVHandler.loadAll", "CSVHandler.findStudent", "CSVHandler.addPoints",
+            "CSVHandler.addPoints(batch30)", "CSVHandler.top3", "CSVHandler.raffleEligible",
+            "Profile.findByUsernameAndRole", "Profile.generateUsername"})
+    String op;
+
+    private Callable<Long> call;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        call = Workloads.get("operations", rows, op);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Workloads.close();
+    }
+
+    @Benchmark
+    public long run() throws Exception {
+        return call.call();
+    }
+}
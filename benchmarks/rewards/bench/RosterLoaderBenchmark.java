@@ -0,0 +1,39 @@
+package rewards.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+// The tokenizer-based CSVHandler.parse against the previous readLine + split loader, and the
+// mapped BinaryRoster of the same rows.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RosterLoaderBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    int rows;
+
+    @Param({"csv.legacySplit", "csv.tokenizer", "roster.binary"})
+    String op;
+
+    private Callable<Long> call;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        call = Workloads.get("rosterLoader", rows, op);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Workloads.close();
+    }
+
+    @Benchmark
+    public long run() throws Exception {
+        return call.call();
+    }
+}
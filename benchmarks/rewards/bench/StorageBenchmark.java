@@ -0,0 +1,41 @@
+package rewards.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+// FileStorage against JdbcStorage for the same n students: a cold read, the snapshot write after
+// one award, a batched insert of every row, and the indexed lookups. H2 by default; set
+// -jvmArgs -Drewards.bench.jdbc=jdbc:sqlite:... to compare SQLite.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+    @Param({"100", "10000", "1000000"})
+    int rows;
+
+    @Param({"file.readRoster", "jdbc.readRoster", "file.writeRoster(1 award)", "jdbc.writeRoster(1 award)",
+            "jdbc.insertAll(batched)", "jdbc.findStudent(indexed)", "jdbc.top3(indexed)"})
+    String op;
+
+    private Callable<Long> call;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        call = Workloads.get("storage", rows, op);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Workloads.close();
+    }
+
+    @Benchmark
+    public long run() throws Exception {
+        return call.call();
+    }
+}
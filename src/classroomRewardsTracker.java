@@ -1,28 +1,87 @@
+import com.sun.net.httpserver.*;
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.*;
 import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.*;
+import java.time.format.TextStyle;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.zip.*;
 
 
 public class classroomRewardsTracker {
 
 
    public static void main(String[] args) {
+       if (args.length > 0 && args[0].startsWith("--")) {
+           Cli.main(args);
+           return;
+       }
+
+
+       PersistenceMode mode = Settings.persistence();
+       DataLock.join();
 
 
-       // DELETE ALL DATA ONLY WHEN PROGRAM FULLY CLOSES
        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-           File f1 = new File("students.csv");
-           if (f1.exists()) f1.delete();
-           File f2 = new File("profiles.csv");
-           if (f2.exists()) f2.delete();
+           if (mode == PersistenceMode.EPHEMERAL && DataLock.lastUser()) {
+               // DELETE ALL DATA ONLY WHEN PROGRAM FULLY CLOSES, and no other process still uses it
+               Storage.get().deleteAll();
+               File f1 = new File(AwardLedger.FILE);
+               if (f1.exists()) f1.delete();
+               File f2 = new File(AwardLedger.HISTORY_FILE);
+               if (f2.exists()) f2.delete();
+           } else if (mode == PersistenceMode.SNAPSHOT_ON_EXIT) {
+               StudentStore.get().flush();
+               ProfileStore.get().flush();
+           }
+           Storage.get().close();
        }));
 
 
+       // Warm start: each data file is streamed once here, before the first screen opens. Data that
+       // cannot be read stops the program before anything can be written over it.
+       try {
+           StudentStore.get();
+           ProfileStore.get();
+       } catch (RuntimeException e) {
+           e.printStackTrace();
+           JOptionPane.showMessageDialog(null, e.getMessage(), "Could not load the rewards data", JOptionPane.ERROR_MESSAGE);
+           System.exit(1);
+       }
+
+
+       int apiPort = Settings.getInt("rewards.api.port", 0);
+       if (apiPort > 0) {
+           try {
+               ApiServer.start(apiPort);
+           } catch (IOException e) {
+               e.printStackTrace();
+           }
+       }
+
+
+       if (Metrics.ENABLED) Metrics.TimedEventQueue.install();
        SwingUtilities.invokeLater(() -> {
-           File profilesFile = new File("profiles.csv");
-           if (!profilesFile.exists() || profilesFile.length() == 0) {
+           if (ProfileStore.get().size() == 0) {
                new ProfileCreationScreen();
            } else {
                new LoginScreen();
@@ -31,6 +90,106 @@ public class classroomRewardsTracker {
    }
 
 
+   // -------------------- SETTINGS --------------------
+
+
+   // rewards.properties in the working directory, overridden by -D system properties.
+   static class Settings {
+       private static final Properties props = load();
+       private static final PersistenceMode persistence =
+               PersistenceMode.parse(get("rewards.persistence", "ephemeral"));
+       private static final int raffleThreshold = getInt("rewards.raffle.threshold", 50);
+       private static final LocalDate termStart = parseDate(get("rewards.term.start", ""));
+
+
+       private static Properties load() {
+           Properties p = new Properties();
+           File f = new File("rewards.properties");
+           if (!f.exists()) return p;
+
+
+           try (Reader r = new FileReader(f)) {
+               p.load(r);
+           } catch (Exception e) {
+               e.printStackTrace();
+           }
+           return p;
+       }
+
+
+       public static String get(String key, String def) {
+           return System.getProperty(key, props.getProperty(key, def));
+       }
+
+
+       public static int getInt(String key, int def) {
+           try {
+               return Integer.parseInt(get(key, String.valueOf(def)).trim());
+           } catch (NumberFormatException e) {
+               return def;
+           }
+       }
+
+
+       public static PersistenceMode persistence() {
+           return persistence;
+       }
+
+
+       // Students need strictly more points than this to enter the raffle.
+       public static int raffleThreshold() {
+           return raffleThreshold;
+       }
+
+
+       // rewards.term.start as yyyy-mm-dd; without it the term runs from 1 September of the
+       // current school year.
+       public static LocalDate termStart() {
+           if (termStart != null) return termStart;
+           LocalDate today = LocalDate.now();
+           int year = today.getMonthValue() >= 9 ? today.getYear() : today.getYear() - 1;
+           return LocalDate.of(year, 9, 1);
+       }
+
+
+       private static LocalDate parseDate(String value) {
+           try {
+               return value.isBlank() ? null : LocalDate.parse(value.trim());
+           } catch (Exception e) {
+               return null;
+           }
+       }
+
+
+       // All data files live in rewards.dataDir (default: the working directory).
+       public static String dataFile(String name) {
+           File dir = new File(get("rewards.dataDir", "."));
+           if (!dir.exists()) dir.mkdirs();
+           return new File(dir, name).getPath();
+       }
+   }
+
+
+   enum PersistenceMode {
+       EPHEMERAL,        // write through while running, delete everything on exit (original behaviour)
+       DURABLE,          // write through while running, keep the files
+       SNAPSHOT_ON_EXIT; // keep changes in memory, write one snapshot of each file on exit
+
+
+       static PersistenceMode parse(String value) {
+           String v = value.trim().toLowerCase(Locale.ROOT);
+           if (v.equals("durable")) return DURABLE;
+           if (v.equals("snapshot-on-exit") || v.equals("snapshot_on_exit")) return SNAPSHOT_ON_EXIT;
+           return EPHEMERAL;
+       }
+
+
+       boolean writesThrough() {
+           return this != SNAPSHOT_ON_EXIT;
+       }
+   }
+
+
    // -------------------- STUDENT DATA --------------------
 
 
@@ -38,6 +197,9 @@ public class classroomRewardsTracker {
        String firstName;
        String lastName;
        int points;
+       String school = "";     // partition: teacher's school name ("" for rows from before partitioning)
+       String className = "";  // partition: the teacher username that owns the class
+       long id;                // JdbcStorage row id, 0 until the row is stored there
 
 
        public Student(String fn, String ln, int pts) {
@@ -47,193 +209,5169 @@ public class classroomRewardsTracker {
        }
 
 
+       public Student(String fn, String ln, int pts, String school, String className) {
+           this(fn, ln, pts);
+           this.school = school;
+           this.className = className;
+       }
+
+
        public String getFullName() {
            return firstName + " " + lastName;
        }
+
+
+       public boolean isRaffleEligible() {
+           return points > Settings.raffleThreshold();
+       }
    }
 
 
+   // Roster rows plus the last award-ledger sequence number already folded into them, and the
+   // version stamp of the write that produced them.
+   static class Snapshot {
+       final List<Student> students;
+       final long ledgerSeq;
+       final long version;
+
+
+       public Snapshot(List<Student> students, long ledgerSeq, long version) {
+           this.students = students;
+           this.ledgerSeq = ledgerSeq;
+           this.version = version;
+       }
+   }
+
+
+   // The roster file is rewards.roster.file (default students.csv); a name ending in ".bin" selects
+   // the BinaryRoster format instead of CSV.
    static class CSVHandler {
-       private static final String FILE = "students.csv";
+       static final String FILE = Settings.dataFile(Settings.get("rewards.roster.file", "students.csv"));
+       private static final String LEDGER_HEADER = "#ledger";
+       private static final String VERSION_HEADER = "#version";
 
 
-       public static List<Student> loadAll() {
-           List<Student> list = new ArrayList<>();
-           File f = new File(FILE);
-           if (!f.exists()) return list;
+       static boolean isBinary(String file) {
+           return file.toLowerCase(Locale.ROOT).endsWith(BinaryRoster.EXTENSION);
+       }
 
 
-           try (BufferedReader br = new BufferedReader(new FileReader(FILE))) {
-               String line;
-               while ((line = br.readLine()) != null) {
-                   String[] p = line.split(",");
-                   if (p.length < 3) continue;
-                   list.add(new Student(p[0], p[1], Integer.parseInt(p[2])));
+       static Snapshot readFile() {
+           return readFile(FILE);
+       }
+
+
+       // "#ledger,<seq>" on the first line records how much of awards.log the rows already include,
+       // and "#version,<stamp>" on the second changes with every snapshot write.
+       // Older readers skip both because they have fewer than three fields.
+       // A roster that exists but cannot be read (a bad checksum, say) throws instead of reading as
+       // empty, since the next snapshot write would replace every student; the file is left as is.
+       static Snapshot readFile(String file) {
+           try {
+               return read(file);
+           } catch (Exception e) {
+               throw new IllegalStateException("Could not read " + file + " (" + e.getMessage()
+                       + "); it has been left untouched. Restore it, or move it aside to start again.", e);
+           }
+       }
+
+
+       static Snapshot read(String file) throws IOException {
+           if (!new File(file).exists()) return new Snapshot(new ArrayList<>(), 0, 0);
+           Snapshot snapshot;
+           if (isBinary(file)) {
+               snapshot = BinaryRoster.read(file);
+           } else {
+               try (Reader in = new FileReader(file)) {
+                   snapshot = parse(in);
+               }
+           }
+           if (Metrics.ENABLED) Metrics.read(new File(file).length(), snapshot.students.size());
+           return snapshot;
+       }
+
+
+       // Reads only the header lines, so a write by another process is noticed without a full parse.
+       static long readVersion() {
+           if (isBinary(FILE)) return BinaryRoster.readVersion(FILE);
+           try (InputStream in = new FileInputStream(FILE)) {
+               String head = new String(in.readNBytes(128), StandardCharsets.UTF_8);
+               for (String line : head.split("\r?\n")) {
+                   if (line.startsWith(VERSION_HEADER + ",")) {
+                       return Long.parseLong(line.substring(VERSION_HEADER.length() + 1).trim());
+                   }
+                   if (!line.startsWith("#")) break;
                }
+           } catch (FileNotFoundException e) {
+               return 0;
            } catch (Exception e) {
                e.printStackTrace();
            }
-           return list;
+           return 0;
        }
 
 
-       public static void saveAll(List<Student> list) {
-           try (FileWriter fw = new FileWriter(FILE)) {
-               for (Student s : list) {
-                   fw.write(s.firstName + "," + s.lastName + "," + s.points + "\n");
+       // Rows are "first,last,points[,school,class]"; rows with fewer than three fields or a bad
+       // points value are skipped.
+       static Snapshot parse(Reader in) throws IOException {
+           List<Student> list = new ArrayList<>();
+           long seq = 0;
+           long version = 0;
+           CsvReader csv = new CsvReader(in);
+           while (csv.nextRow()) {
+               String first = csv.nextField();
+               if (first.equals(LEDGER_HEADER) && csv.hasField()) {
+                   try {
+                       seq = csv.nextLong();
+                   } catch (NumberFormatException ignored) {
+                   }
+                   continue;
+               }
+               if (first.equals(VERSION_HEADER) && csv.hasField()) {
+                   try {
+                       version = csv.nextLong();
+                   } catch (NumberFormatException ignored) {
+                   }
+                   continue;
+               }
+               if (!csv.hasField()) continue;
+               String last = csv.nextField();
+               if (!csv.hasField()) continue;
+               try {
+                   int points = csv.nextInt();
+                   String school = csv.hasField() ? csv.nextField() : "";
+                   String className = csv.hasField() ? csv.nextField() : "";
+                   list.add(new Student(first, last, points, school, className));
+               } catch (NumberFormatException ignored) {
+               }
+           }
+           return new Snapshot(list, seq, version);
+       }
+
+
+       static void writeFile(List<Student> list, long ledgerSeq, long version) {
+           writeFile(FILE, list, ledgerSeq, version);
+       }
+
+
+       static void writeFile(String file, List<Student> list, long ledgerSeq, long version) {
+           try {
+               if (isBinary(file)) {
+                   BinaryRoster.write(file, list, ledgerSeq, version);
+                   return;
                }
+               AtomicFile.write(file, out -> {
+                   out.write(LEDGER_HEADER + "," + ledgerSeq + "\n");
+                   out.write(VERSION_HEADER + "," + version + "\n");
+                   for (Student s : list) {
+                       out.write(CsvReader.escape(s.firstName) + "," + CsvReader.escape(s.lastName) + "," + s.points);
+                       if (!s.school.isEmpty() || !s.className.isEmpty()) {
+                           out.write("," + CsvReader.escape(s.school) + "," + CsvReader.escape(s.className));
+                       }
+                       out.write("\n");
+                   }
+               });
            } catch (Exception e) {
                e.printStackTrace();
            }
        }
 
 
-       public static void addStudent(Student s) {
-           List<Student> all = loadAll();
-           all.add(s);
-           saveAll(all);
+       // Rewrites a roster in the format its extension names; rows, order, the ledger sequence
+       // and the version stamp all carry over.
+       // Usage: java classroomRewardsTracker --convert students.csv students.bin
+       public static void convert(String from, String to) {
+           if (!new File(from).exists()) {
+               System.out.println(from + " does not exist");
+               return;
+           }
+           try {
+               Snapshot snapshot = read(from);
+               writeFile(to, snapshot.students, snapshot.ledgerSeq, snapshot.version);
+               System.out.println("Converted " + snapshot.students.size() + " students from " + from + " to " + to);
+           } catch (IOException e) {
+               System.out.println("Could not read " + from + ": " + e.getMessage());
+           }
+       }
+
+
+       public static List<Student> loadAll() {
+           long start = Metrics.start();
+           List<Student> all = StudentStore.get().all();
+           Metrics.LOAD_ALL.stop(start);
+           return all;
+       }
+
+
+       public static List<Student> loadAll(String school, String className) {
+           long start = Metrics.start();
+           List<Student> all = StudentStore.get().all(school, className);
+           Metrics.LOAD_ALL.stop(start);
+           return all;
+       }
+
+
+       public static void saveAll(List<Student> list) {
+           long start = Metrics.start();
+           StudentStore.get().replaceAll(list);
+           Metrics.SAVE_ALL.stop(start);
+       }
+
+
+       public static boolean addStudent(Student s) {
+           return !addStudents(Collections.singletonList(s)).isEmpty();
+       }
+
+
+       public static List<Student> addStudents(List<Student> list) {
+           long start = Metrics.start();
+           List<Student> added = StudentStore.get().addAll(list);
+           Metrics.ADD_STUDENTS.stop(start);
+           return added;
+       }
+
+
+       public static boolean exists(String fullName) {
+           return StudentStore.get().contains(fullName);
+       }
+
+
+       public static boolean renameStudent(String fullName, String newFirst, String newLast) {
+           return StudentStore.get().rename(fullName, newFirst, newLast);
        }
 
 
        public static Student findStudent(String fullName) {
-           for (Student s : loadAll()) {
-               if (s.getFullName().equalsIgnoreCase(fullName.trim())) {
-                   return s;
+           long start = Metrics.start();
+           Student s = StudentStore.get().find(fullName);
+           Metrics.FIND_STUDENT.stop(start);
+           return s;
+       }
+
+
+       public static void addPoints(String fullName, int pts) {
+           addPoints(fullName, pts, Award.GENERAL);
+       }
+
+
+       public static void addPoints(String fullName, int pts, String category) {
+           long start = Metrics.start();
+           StudentStore.get().addPoints(fullName, pts, category);
+           Metrics.ADD_POINTS.stop(start);
+       }
+
+
+       public static List<Award> addPoints(List<Award> awards) {
+           long start = Metrics.start();
+           List<Award> applied = StudentStore.get().addPoints(awards);
+           Metrics.ADD_POINTS_BATCH.stop(start);
+           return applied;
+       }
+
+
+       // Points awarded from the start of the given day up to now.
+       public static int pointsSince(String fullName, LocalDate from) {
+           return StudentStore.get().pointsBetween(fullName, from, LocalDate.now().plusDays(1));
+       }
+
+
+       public static Map<String, Integer> categoryPointsSince(String fullName, LocalDate from) {
+           return StudentStore.get().categoryPoints(fullName, from, LocalDate.now().plusDays(1));
+       }
+
+
+       public static List<Award> recentAwards(String fullName, int k) {
+           return StudentStore.get().recentAwards(fullName, k);
+       }
+
+
+       public static void deleteStudent(String fullName) {
+           deleteStudents(Collections.singletonList(fullName));
+       }
+
+
+       public static int deleteStudents(List<String> names) {
+           long start = Metrics.start();
+           int deleted = StudentStore.get().deleteAll(names);
+           Metrics.DELETE_STUDENT.stop(start);
+           return deleted;
+       }
+
+
+       // Students from before partitioning have no school or class, so no dashboard lists them.
+       public static List<String> unassignedNames() {
+           StudentStore.get().sync();
+           List<String> names = new ArrayList<>();
+           for (Student s : StudentStore.get().all("", "")) {
+               names.add(s.getFullName());
+           }
+           return names;
+       }
+
+
+       public static int claimUnassigned(Collection<String> names, String school, String className) {
+           return StudentStore.get().claimUnassigned(names, school, className);
+       }
+
+
+       public static List<Student> top3() {
+           long start = Metrics.start();
+           List<Student> top = StudentStore.get().top(3);
+           Metrics.TOP3.stop(start);
+           return top;
+       }
+
+
+       public static List<Student> top3(String school, String className) {
+           long start = Metrics.start();
+           List<Student> top = StudentStore.get().top(school, className, 3);
+           Metrics.TOP3.stop(start);
+           return top;
+       }
+
+
+       public static List<Student> schoolTop3(String school) {
+           long start = Metrics.start();
+           List<Student> top = StudentStore.get().schoolTop(school, 3);
+           Metrics.TOP3.stop(start);
+           return top;
+       }
+
+
+       // 1-based position within the student's class, or 0 if the student does not exist.
+       public static int rank(String fullName) {
+           return StudentStore.get().rank(fullName);
+       }
+
+
+       public static int classSize(String fullName) {
+           return StudentStore.get().classSize(fullName);
+       }
+
+
+       public static List<Student> raffleEligible() {
+           return StudentStore.get().raffleEligible();
+       }
+
+
+       public static List<Student> raffleEligible(String school, String className) {
+           return StudentStore.get().raffleEligible(school, className);
+       }
+
+
+       // Draws one raffle winner with tickets proportional to points, or null if nobody is eligible.
+       public static Student drawRaffleWinner() {
+           long start = Metrics.start();
+           Student winner = StudentStore.get().drawRaffleWinner();
+           Metrics.RAFFLE_DRAW.stop(start);
+           return winner;
+       }
+
+
+       public static Student drawRaffleWinner(String school, String className) {
+           long start = Metrics.start();
+           Student winner = StudentStore.get().drawRaffleWinner(school, className);
+           Metrics.RAFFLE_DRAW.stop(start);
+           return winner;
+       }
+   }
+
+
+   // -------------------- BINARY ROSTER --------------------
+
+
+   // Layout, big-endian:
+   //   header   magic "CRTR", format 1, long ledgerSeq, long version, int nameCount, int studentCount
+   //   names    nameCount x (int byteLength, UTF-8 bytes); first/last names, schools and classes
+   //            share one interned table
+   //   students studentCount x (int first, int last, int points, int school, int class)
+   //   trailer  int CRC32 of every byte before it
+   // Loading maps the file, checks the CRC and bulk-copies the fixed-width student records, so
+   // the only per-row work is one object allocation.
+   static class BinaryRoster {
+       static final String EXTENSION = ".bin";
+       private static final int MAGIC = 0x43525452; // "CRTR"
+       private static final int FORMAT = 1;
+       private static final int HEADER = 32;
+       private static final int RECORD_INTS = 5;
+
+
+       public static Snapshot read(String file) throws IOException {
+           try (FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+               long size = ch.size();
+               if (size < HEADER + 4 || size > Integer.MAX_VALUE) throw new IOException(file + ": not a roster file");
+               MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+               if (buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT) throw new IOException(file + ": not a roster file");
+
+
+               CRC32 crc = new CRC32();
+               crc.update(buf.slice(0, (int) size - 4));
+               if ((int) crc.getValue() != buf.getInt((int) size - 4)) throw new IOException(file + ": checksum mismatch");
+
+
+               long ledgerSeq = buf.getLong(8);
+               long version = buf.getLong(16);
+               int nameCount = buf.getInt(24);
+               int count = buf.getInt(28);
+
+
+               buf.position(HEADER);
+               String[] names = new String[nameCount];
+               byte[] bytes = new byte[64];
+               for (int i = 0; i < nameCount; i++) {
+                   int length = buf.getInt();
+                   if (length > bytes.length) bytes = new byte[Math.max(length, bytes.length * 2)];
+                   buf.get(bytes, 0, length);
+                   names[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+               }
+
+
+               int[] records = new int[count * RECORD_INTS];
+               buf.asIntBuffer().get(records);
+               List<Student> list = new ArrayList<>(count);
+               for (int r = 0; r < records.length; r += RECORD_INTS) {
+                   list.add(new Student(names[records[r]], names[records[r + 1]], records[r + 2],
+                           names[records[r + 3]], names[records[r + 4]]));
                }
+               return new Snapshot(list, ledgerSeq, version);
            }
-           return null;
        }
 
 
-       public static void addPoints(String fullName, int pts) {
-           List<Student> all = loadAll();
-           for (Student s : all) {
-               if (s.getFullName().equalsIgnoreCase(fullName.trim())) {
-                   s.points += pts;
+       // The version stamp sits at a fixed offset, so checking it is one small read.
+       public static long readVersion(String file) {
+           try (FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+               ByteBuffer head = ByteBuffer.allocate(24);
+               while (head.hasRemaining() && ch.read(head) > 0) {
                }
+               if (head.position() < 24 || head.getInt(0) != MAGIC) return 0;
+               return head.getLong(16);
+           } catch (NoSuchFileException e) {
+               return 0;
+           } catch (Exception e) {
+               e.printStackTrace();
+               return 0;
            }
-           saveAll(all);
        }
 
 
-       public static void deleteStudent(String fullName) {
-           List<Student> all = loadAll();
-           all.removeIf(s -> s.getFullName().equalsIgnoreCase(fullName.trim()));
-           saveAll(all);
+       public static void write(String file, List<Student> list, long ledgerSeq, long version) throws IOException {
+           Map<String, Integer> ids = new HashMap<>();
+           List<String> table = new ArrayList<>();
+           int[] records = new int[list.size() * RECORD_INTS];
+           int r = 0;
+           for (Student s : list) {
+               records[r++] = intern(s.firstName, ids, table);
+               records[r++] = intern(s.lastName, ids, table);
+               records[r++] = s.points;
+               records[r++] = intern(s.school, ids, table);
+               records[r++] = intern(s.className, ids, table);
+           }
+
+
+           AtomicFile.writeBytes(file, raw -> {
+               CRC32 crc = new CRC32();
+               DataOutputStream out = new DataOutputStream(new CheckedOutputStream(raw, crc));
+               out.writeInt(MAGIC);
+               out.writeInt(FORMAT);
+               out.writeLong(ledgerSeq);
+               out.writeLong(version);
+               out.writeInt(table.size());
+               out.writeInt(list.size());
+               for (String name : table) {
+                   byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                   out.writeInt(bytes.length);
+                   out.write(bytes);
+               }
+               for (int value : records) {
+                   out.writeInt(value);
+               }
+               out.flush();
+               new DataOutputStream(raw).writeInt((int) crc.getValue());
+           });
+       }
+
+
+       private static int intern(String name, Map<String, Integer> ids, List<String> table) {
+           Integer id = ids.get(name);
+           if (id == null) {
+               id = table.size();
+               table.add(name);
+               ids.put(name, id);
+           }
+           return id;
        }
+   }
+
+
+   // -------------------- STORAGE --------------------
+
+
+   // Where the resident stores load from and write their snapshots to. rewards.storage picks the
+   // backend: "file" (default) is the roster and profile files; a JDBC URL such as
+   // jdbc:h2:./rewards or jdbc:sqlite:rewards.db keeps both in an embedded database instead.
+   // The award ledger and history stay log files either way, and the DataLock still orders
+   // processes.
+   interface Storage {
+       Snapshot readRoster();
+
+
+       long readRosterVersion();
+
+
+       void writeRoster(List<Student> list, long ledgerSeq, long version);
+
+
+       List<Profile> readProfiles();
+
+
+       // Changes with every profile write, so other processes' additions are noticed cheaply.
+       long readProfilesVersion();
+
+
+       void writeProfiles(List<Profile> list);
+
+
+       void appendProfiles(List<Profile> list);
+
+
+       void deleteAll();
+
+
+       void close();
+
+
+       static Storage get() {
+           return Selected.STORAGE;
+       }
+
+
+       static Storage open(String spec) {
+           if (!spec.trim().startsWith("jdbc:")) return new FileStorage();
+           try {
+               return new JdbcStorage(spec.trim());
+           } catch (SQLException e) {
+               throw new IllegalStateException("Could not open " + spec + " (is its JDBC driver on the classpath?)", e);
+           }
+       }
+
+
+       final class Selected {
+           static final Storage STORAGE = open(Settings.get("rewards.storage", "file"));
+       }
+   }
+
+
+   // The roster file CSVHandler names (CSV or binary) and ProfileHandler's profiles.csv.
+   static class FileStorage implements Storage {
+
+
+       @Override
+       public Snapshot readRoster() {
+           return CSVHandler.readFile();
+       }
+
+
+       @Override
+       public long readRosterVersion() {
+           return CSVHandler.readVersion();
+       }
+
+
+       @Override
+       public void writeRoster(List<Student> list, long ledgerSeq, long version) {
+           CSVHandler.writeFile(list, ledgerSeq, version);
+       }
+
+
+       @Override
+       public List<Profile> readProfiles() {
+           return ProfileHandler.readFile();
+       }
+
+
+       @Override
+       public long readProfilesVersion() {
+           return ProfileHandler.readVersion();
+       }
+
+
+       @Override
+       public void writeProfiles(List<Profile> list) {
+           ProfileHandler.writeFile(list);
+       }
+
+
+       @Override
+       public void appendProfiles(List<Profile> list) {
+           ProfileHandler.appendToFile(list);
+       }
+
+
+       @Override
+       public void deleteAll() {
+           File roster = new File(CSVHandler.FILE);
+           if (roster.exists()) roster.delete();
+           File profiles = new File(ProfileHandler.FILE);
+           if (profiles.exists()) profiles.delete();
+       }
+
+
+       @Override
+       public void close() {
+       }
+   }
+
+
+   // Roster and profiles in an embedded database over plain JDBC; pom.xml brings in the H2 and
+   // SQLite drivers at run time. Rows keep a stable id, so roster order survives a
+   // reload and a rename is an update. The store stays resident, so a snapshot write is diffed
+   // against the rows this process last read or wrote and only new, changed and deleted students
+   // become statements, batched in one transaction. If another process wrote a snapshot since,
+   // the whole table is rewritten instead.
+   // With H2, add ;DB_CLOSE_ON_EXIT=FALSE to the URL: the shutdown hook closes the connection
+   // itself, after the exit snapshot. Several processes on one H2 file also need ;AUTO_SERVER=TRUE;
+   // SQLite shares its file as it is.
+   static class JdbcStorage implements Storage, AutoCloseable {
+       private static final int BATCH = 1000;
+       private static final String LEDGER = "ledger";
+       private static final String VERSION = "version";
+       private static final String PROFILES_VERSION = "profiles_version";
+       private static final String[] SCHEMA = {
+               "CREATE TABLE IF NOT EXISTS rewards_meta (meta_key VARCHAR(32) PRIMARY KEY, meta_value BIGINT NOT NULL)",
+               "CREATE TABLE IF NOT EXISTS students (id BIGINT PRIMARY KEY, first_name VARCHAR(255) NOT NULL,"
+                       + " last_name VARCHAR(255) NOT NULL, name_key VARCHAR(512) NOT NULL, points INT NOT NULL,"
+                       + " school VARCHAR(255) NOT NULL, class_name VARCHAR(255) NOT NULL)",
+               "CREATE INDEX IF NOT EXISTS students_name ON students (name_key)",
+               "CREATE INDEX IF NOT EXISTS students_points ON students (points)",
+               "CREATE INDEX IF NOT EXISTS students_partition ON students (school, class_name)",
+               "CREATE TABLE IF NOT EXISTS profiles (id BIGINT PRIMARY KEY, role VARCHAR(16) NOT NULL,"
+                       + " full_name VARCHAR(255) NOT NULL, username VARCHAR(255) NOT NULL, linked_name VARCHAR(255) NOT NULL)",
+               "CREATE INDEX IF NOT EXISTS profiles_login ON profiles (username, role)",
+       };
+       private static final String STUDENT_COLUMNS = "id, first_name, last_name, points, school, class_name";
+
+
+       private final Connection conn;
+       private final PreparedStatement versionQuery;
+       private final PreparedStatement nameQuery;
+       private final PreparedStatement topQuery;
+       private final PreparedStatement loginQuery;
+       private final Map<Long, Student> written = new HashMap<>(); // id -> the row as last read or written
+       private long writtenVersion = -1; // snapshot version those rows belong to
+
+
+       private interface Work<T> {
+           T run() throws SQLException;
+       }
+
+
+       JdbcStorage(String url) throws SQLException {
+           conn = DriverManager.getConnection(url);
+           try {
+               conn.setAutoCommit(false);
+               transaction(() -> {
+                   try (Statement st = conn.createStatement()) {
+                       for (String sql : SCHEMA) st.execute(sql);
+                   }
+                   return null;
+               });
+               versionQuery = conn.prepareStatement("SELECT meta_value FROM rewards_meta WHERE meta_key = ?");
+               nameQuery = conn.prepareStatement("SELECT " + STUDENT_COLUMNS + " FROM students WHERE name_key = ?");
+               topQuery = conn.prepareStatement("SELECT " + STUDENT_COLUMNS + " FROM students ORDER BY points DESC");
+               loginQuery = conn.prepareStatement(
+                       "SELECT role, full_name, username, linked_name FROM profiles WHERE username = ? AND role = ?");
+           } catch (SQLException e) {
+               conn.close();
+               throw e;
+           }
+       }
+
+
+       // Every call is its own transaction, reads included: an open read would hold SQLite's
+       // shared lock and keep other processes from writing.
+       private <T> T transaction(Work<T> work) throws SQLException {
+           try {
+               T result = work.run();
+               conn.commit();
+               return result;
+           } catch (SQLException | RuntimeException e) {
+               conn.rollback();
+               throw e;
+           }
+       }
+
+
+       // As with the roster file, a failed read must not look like an empty roster.
+       @Override
+       public synchronized Snapshot readRoster() {
+           try {
+               return loadRoster();
+           } catch (SQLException e) {
+               throw new IllegalStateException("Could not read the roster from the database: " + e.getMessage(), e);
+           }
+       }
+
+
+       synchronized Snapshot loadRoster() throws SQLException {
+           return transaction(() -> {
+               written.clear();
+               writtenVersion = -1;
+               List<Student> list = new ArrayList<>();
+               try (Statement st = conn.createStatement();
+                    ResultSet rs = st.executeQuery("SELECT " + STUDENT_COLUMNS + " FROM students ORDER BY id")) {
+                   while (rs.next()) {
+                       Student s = student(rs);
+                       list.add(s);
+                       written.put(s.id, copy(s));
+                   }
+               }
+               Metrics.read(0, list.size());
+               long version = meta(VERSION);
+               writtenVersion = version;
+               return new Snapshot(list, meta(LEDGER), version);
+           });
+       }
+
+
+       @Override
+       public synchronized long readRosterVersion() {
+           try {
+               return transaction(() -> meta(VERSION));
+           } catch (SQLException e) {
+               e.printStackTrace();
+               return 0;
+           }
+       }
+
+
+       @Override
+       public synchronized long readProfilesVersion() {
+           try {
+               return transaction(() -> meta(PROFILES_VERSION));
+           } catch (SQLException e) {
+               e.printStackTrace();
+               return 0;
+           }
+       }
+
+
+       @Override
+       public synchronized void writeRoster(List<Student> list, long ledgerSeq, long version) {
+           try {
+               saveRoster(list, ledgerSeq, version);
+           } catch (SQLException e) {
+               e.printStackTrace();
+           }
+       }
+
+
+       synchronized void saveRoster(List<Student> list, long ledgerSeq, long version) throws SQLException {
+           Map<Long, Student> changed = new HashMap<>();
+           Set<Long> deleted = new HashSet<>();
+           boolean full;
+           try {
+               full = transaction(() -> writeRows(list, ledgerSeq, version, changed, deleted));
+           } catch (SQLException e) {
+               writtenVersion = -1; // the ids handed out may not have been stored
+               throw e;
+           }
+           if (full) written.clear();
+           written.keySet().removeAll(deleted);
+           written.putAll(changed);
+           writtenVersion = version;
+       }
+
+
+       // Returns whether the table was rewritten from scratch.
+       private boolean writeRows(List<Student> list, long ledgerSeq, long version,
+                                 Map<Long, Student> changed, Set<Long> deleted) throws SQLException {
+           boolean full = meta(VERSION) != writtenVersion;
+           Map<Long, Student> before = full ? Collections.emptyMap() : written;
+           if (full) {
+               try (Statement st = conn.createStatement()) {
+                   st.executeUpdate("DELETE FROM students");
+               }
+           }
+           long nextId = maxId("students");
+           for (Student s : list) nextId = Math.max(nextId, s.id);
+
+
+           try (PreparedStatement insert = conn.prepareStatement("INSERT INTO students (id, first_name, last_name,"
+                   + " name_key, points, school, class_name) VALUES (?, ?, ?, ?, ?, ?, ?)");
+                PreparedStatement update = conn.prepareStatement("UPDATE students SET first_name = ?, last_name = ?,"
+                        + " name_key = ?, points = ?, school = ?, class_name = ? WHERE id = ?");
+                PreparedStatement delete = conn.prepareStatement("DELETE FROM students WHERE id = ?")) {
+               int inserts = 0;
+               int updates = 0;
+               int matched = 0;
+               for (Student s : list) {
+                   if (s.id == 0) s.id = ++nextId;
+                   Student old = before.get(s.id);
+                   if (old != null) matched++;
+                   if (old == null) {
+                       insert.setLong(1, s.id);
+                       bindStudent(insert, 2, s);
+                       insert.addBatch();
+                       if (++inserts % BATCH == 0) insert.executeBatch();
+                   } else if (!sameRow(old, s)) {
+                       bindStudent(update, 1, s);
+                       update.setLong(7, s.id);
+                       update.addBatch();
+                       if (++updates % BATCH == 0) update.executeBatch();
+                   } else {
+                       continue;
+                   }
+                   changed.put(s.id, copy(s));
+               }
+               // Every stored row still present means nothing to delete, the common case.
+               if (matched < before.size()) {
+                   Set<Long> kept = new HashSet<>();
+                   for (Student s : list) kept.add(s.id);
+                   int deletes = 0;
+                   for (Long id : before.keySet()) {
+                       if (kept.contains(id)) continue;
+                       delete.setLong(1, id);
+                       delete.addBatch();
+                       if (++deletes % BATCH == 0) delete.executeBatch();
+                       deleted.add(id);
+                   }
+               }
+               delete.executeBatch();
+               update.executeBatch();
+               insert.executeBatch();
+           }
+           setMeta(LEDGER, ledgerSeq);
+           setMeta(VERSION, version);
+           return full;
+       }
+
+
+       @Override
+       public synchronized List<Profile> readProfiles() {
+           try {
+               return transaction(() -> {
+                   List<Profile> list = new ArrayList<>();
+                   try (Statement st = conn.createStatement();
+                        ResultSet rs = st.executeQuery("SELECT role, full_name, username, linked_name FROM profiles ORDER BY id")) {
+                       while (rs.next()) list.add(profile(rs));
+                   }
+                   Metrics.read(0, list.size());
+                   return list;
+               });
+           } catch (SQLException e) {
+               throw new IllegalStateException("Could not read the profiles from the database: " + e.getMessage(), e);
+           }
+       }
+
+
+       @Override
+       public synchronized void writeProfiles(List<Profile> list) {
+           try {
+               saveProfiles(list, true);
+           } catch (SQLException e) {
+               e.printStackTrace();
+           }
+       }
+
+
+       @Override
+       public synchronized void appendProfiles(List<Profile> list) {
+           try {
+               saveProfiles(list, false);
+           } catch (SQLException e) {
+               e.printStackTrace();
+           }
+       }
+
+
+       synchronized void saveProfiles(List<Profile> list, boolean replace) throws SQLException {
+           transaction(() -> {
+               if (replace) {
+                   try (Statement st = conn.createStatement()) {
+                       st.executeUpdate("DELETE FROM profiles");
+                   }
+               }
+               long id = maxId("profiles");
+               try (PreparedStatement insert = conn.prepareStatement(
+                       "INSERT INTO profiles (id, role, full_name, username, linked_name) VALUES (?, ?, ?, ?, ?)")) {
+                   int rows = 0;
+                   for (Profile p : list) {
+                       insert.setLong(1, ++id);
+                       insert.setString(2, p.role);
+                       insert.setString(3, p.fullName);
+                       insert.setString(4, p.username);
+                       insert.setString(5, p.linkedName);
+                       insert.addBatch();
+                       if (++rows % BATCH == 0) insert.executeBatch();
+                   }
+                   insert.executeBatch();
+               }
+               setMeta(PROFILES_VERSION, ThreadLocalRandom.current().nextLong());
+               return null;
+           });
+       }
+
+
+       @Override
+       public synchronized void deleteAll() {
+           try {
+               transaction(() -> {
+                   try (Statement st = conn.createStatement()) {
+                       st.executeUpdate("DELETE FROM students");
+                       st.executeUpdate("DELETE FROM profiles");
+                       st.executeUpdate("DELETE FROM rewards_meta");
+                   }
+                   return null;
+               });
+               written.clear();
+               writtenVersion = -1;
+           } catch (SQLException e) {
+               e.printStackTrace();
+           }
+       }
+
+
+       // Indexed lookups straight from the tables, for tools that do not load the resident store.
+       public synchronized Student findStudent(String fullName) throws SQLException {
+           return transaction(() -> {
+               nameQuery.setString(1, StudentStore.key(fullName));
+               try (ResultSet rs = nameQuery.executeQuery()) {
+                   return rs.next() ? student(rs) : null;
+               }
+           });
+       }
+
+
+       public synchronized List<Student> top(int n) throws SQLException {
+           return transaction(() -> {
+               List<Student> list = new ArrayList<>();
+               topQuery.setMaxRows(n);
+               try (ResultSet rs = topQuery.executeQuery()) {
+                   while (rs.next()) list.add(student(rs));
+               }
+               return list;
+           });
+       }
+
+
+       public synchronized Profile findProfile(String username, String role) throws SQLException {
+           return transaction(() -> {
+               loginQuery.setString(1, username);
+               loginQuery.setString(2, role);
+               try (ResultSet rs = loginQuery.executeQuery()) {
+                   return rs.next() ? profile(rs) : null;
+               }
+           });
+       }
+
+
+       synchronized int count(String table) throws SQLException {
+           return transaction(() -> {
+               try (Statement st = conn.createStatement();
+                    ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM " + table)) {
+                   return rs.next() ? rs.getInt(1) : 0;
+               }
+           });
+       }
+
+
+       private long meta(String key) throws SQLException {
+           versionQuery.setString(1, key);
+           try (ResultSet rs = versionQuery.executeQuery()) {
+               return rs.next() ? rs.getLong(1) : 0;
+           }
+       }
+
+
+       private void setMeta(String key, long value) throws SQLException {
+           try (PreparedStatement update = conn.prepareStatement("UPDATE rewards_meta SET meta_value = ? WHERE meta_key = ?")) {
+               update.setLong(1, value);
+               update.setString(2, key);
+               if (update.executeUpdate() > 0) return;
+           }
+           try (PreparedStatement insert = conn.prepareStatement("INSERT INTO rewards_meta (meta_key, meta_value) VALUES (?, ?)")) {
+               insert.setString(1, key);
+               insert.setLong(2, value);
+               insert.executeUpdate();
+           }
+       }
+
+
+       private long maxId(String table) throws SQLException {
+           try (Statement st = conn.createStatement();
+                ResultSet rs = st.executeQuery("SELECT MAX(id) FROM " + table)) {
+               return rs.next() ? rs.getLong(1) : 0;
+           }
+       }
+
+
+       private static Student student(ResultSet rs) throws SQLException {
+           Student s = new Student(rs.getString(2), rs.getString(3), rs.getInt(4), rs.getString(5), rs.getString(6));
+           s.id = rs.getLong(1);
+           return s;
+       }
+
+
+       private static Profile profile(ResultSet rs) throws SQLException {
+           return new Profile(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4));
+       }
+
+
+       private static void bindStudent(PreparedStatement st, int at, Student s) throws SQLException {
+           st.setString(at, s.firstName);
+           st.setString(at + 1, s.lastName);
+           st.setString(at + 2, StudentStore.key(s.firstName, s.lastName));
+           st.setInt(at + 3, s.points);
+           st.setString(at + 4, s.school);
+           st.setString(at + 5, s.className);
+       }
+
+
+       private static Student copy(Student s) {
+           Student c = new Student(s.firstName, s.lastName, s.points, s.school, s.className);
+           c.id = s.id;
+           return c;
+       }
+
+
+       private static boolean sameRow(Student a, Student b) {
+           return a.points == b.points && a.firstName.equals(b.firstName) && a.lastName.equals(b.lastName)
+                   && a.school.equals(b.school) && a.className.equals(b.className);
+       }
+
+
+       // One-shot copy of the roster and profile files into an empty database; the ledger
+       // sequence and version stamp carry over, so awards.log replays on top as before.
+       // Duplicate names are dropped the way the store drops them on load.
+       // Usage: java classroomRewardsTracker --migrate jdbc:h2:./rewards
+       public static void migrate(String url) {
+           if (!url.startsWith("jdbc:")) {
+               System.out.println("Usage: --migrate <jdbc-url>, or set rewards.storage to one");
+               return;
+           }
+           FileStorage files = new FileStorage();
+           Snapshot snapshot = files.readRoster();
+           List<Profile> profiles = files.readProfiles();
+           Set<String> names = new HashSet<>();
+           List<Student> students = new ArrayList<>();
+           for (Student s : snapshot.students) {
+               if (names.add(StudentStore.key(s.firstName, s.lastName))) students.add(s);
+           }
+
+
+           try (JdbcStorage db = new JdbcStorage(url)) {
+               if (db.count("students") > 0 || db.count("profiles") > 0) {
+                   System.out.println(url + " already has data; nothing migrated");
+                   return;
+               }
+               db.saveRoster(students, snapshot.ledgerSeq, snapshot.version);
+               db.saveProfiles(profiles, true);
+               System.out.println("Migrated " + students.size() + " students and " + profiles.size()
+                       + " profiles to " + url);
+           } catch (SQLException e) {
+               System.out.println("Could not migrate to " + url + ": " + e.getMessage());
+           }
+       }
+
+
+       @Override
+       public synchronized void close() {
+           try {
+               conn.close();
+           } catch (SQLException e) {
+               e.printStackTrace();
+           }
+       }
+   }
+
+
+   // -------------------- STUDENT STORE --------------------
+
+
+   // Roster is read from students.csv once and kept resident; reads never touch the disk.
+   // Point awards are appended to the AwardLedger; roster changes and periodic compaction
+   // rewrite the students.csv snapshot and fold the ledger into it.
+   // Students are partitioned by school and class: each Partition has its own roster order,
+   // leaderboard and raffle, so a class dashboard only ever touches its own partition.
+   // Names stay unique across the whole store because student and parent logins use them.
+   // In the write-through modes several processes (one per teacher) may share the data files:
+   // every change runs under the DataLock after catching up with what the others wrote. Awards
+   // are deltas, so catching up means replaying their ledger entries; a changed snapshot
+   // version means the roster itself was rewritten and is read again.
+   static class StudentStore {
+       private static StudentStore instance;
+
+
+       private final Map<String, Student> byName = new HashMap<>(); // key(fullName) -> student
+       private final Map<String, Partition> partitions = new LinkedHashMap<>(); // partitionKey -> partition
+       private final Map<String, List<RosterListener>> listeners = new ConcurrentHashMap<>();
+       private long ledgerSeq;     // last award sequence number applied in memory
+       private int ledgerSize;     // awards in the ledger since the last snapshot
+       private long ledgerOffset;  // bytes of awards.log already applied
+       private long version;       // stamp of the snapshot this copy is based on
+       private final History history = new History();
+       private long historyOffset; // bytes of history.log already applied
+       private final List<Award> unlogged = new ArrayList<>(); // snapshot-on-exit: awards not on disk yet
+
+
+       private StudentStore() {
+           DataLock.run(this::readFromDisk);
+       }
+
+
+       // Reads the snapshot and replays the ledger behind it. History is only ever appended to,
+       // so it is read on from where this copy left off. Caller holds the DataLock.
+       private void readFromDisk() {
+           long start = Metrics.start();
+           Snapshot snapshot = Storage.get().readRoster();
+           load(snapshot.students);
+           ledgerSeq = snapshot.ledgerSeq;
+           version = snapshot.version;
+           ledgerSize = 0;
+           ledgerOffset = 0;
+           if (AwardLedger.historySize() < historyOffset) {
+               history.clear();
+               historyOffset = 0;
+           }
+           historyOffset = AwardLedger.readHistory(historyOffset, history::apply);
+           replayLedger();
+           Metrics.STORE_LOAD.stop(start);
+       }
+
+
+       // Applies the awards appended since this copy last looked. Caller holds the DataLock.
+       private void replayLedger() {
+           long end = AwardLedger.size();
+           if (end > ledgerOffset) {
+               Set<Student> touched = new LinkedHashSet<>();
+               for (Award a : AwardLedger.readFrom(ledgerOffset)) {
+                   history.apply(a);
+                   if (a.seq <= ledgerSeq || a.isMarker()) continue;
+                   Student s = byName.get(a.key);
+                   if (s != null) {
+                       applyPoints(s, a.delta);
+                       touched.add(s);
+                   }
+                   ledgerSeq = a.seq;
+                   ledgerSize++;
+               }
+               publish(touched);
+           }
+           ledgerOffset = end;
+       }
+
+
+       // A new snapshot version or a ledger shorter than what was applied means another process
+       // wrote a snapshot, so the cheap delta replay is not enough. Caller holds the DataLock.
+       private void catchUp() {
+           if (Storage.get().readRosterVersion() != version || AwardLedger.size() < ledgerOffset) {
+               readFromDisk();
+               fireReloaded();
+           } else {
+               replayLedger();
+           }
+       }
+
+
+       // Picks up awards and roster changes made by other processes.
+       public synchronized void sync() {
+           if (Settings.persistence().writesThrough()) DataLock.run(this::catchUp);
+       }
+
+
+       private void shared(Runnable change) {
+           if (!Settings.persistence().writesThrough()) {
+               change.run();
+               return;
+           }
+           DataLock.run(() -> {
+               catchUp();
+               change.run();
+           });
+       }
+
+
+       private <T> T sharedCall(Supplier<T> change) {
+           if (!Settings.persistence().writesThrough()) return change.get();
+           return DataLock.call(() -> {
+               catchUp();
+               return change.get();
+           });
+       }
+
+
+       // Case-folded lookup key, so "Ada Lovelace " and "ada lovelace" hit the same entry.
+       static String key(String fullName) {
+           return fullName.trim().toLowerCase(Locale.ROOT);
+       }
+
+
+       static String key(String first, String last) {
+           return key(first + " " + last);
+       }
+
+
+       static String partitionKey(String school, String className) {
+           return key(school) + "\n" + key(className);
+       }
+
+
+       public static synchronized StudentStore get() {
+           if (instance == null) instance = new StudentStore();
+           return instance;
+       }
+
+
+       // Drops the resident copy and reads the files again.
+       public static synchronized StudentStore reload() {
+           instance = new StudentStore();
+           return instance;
+       }
+
+
+       private Partition partition(String school, String className) {
+           return partitions.computeIfAbsent(partitionKey(school, className), k -> new Partition(school, className));
+       }
+
+
+       private Partition partitionOf(Student s) {
+           return partition(s.school, s.className);
+       }
+
+
+       private Partition existing(String school, String className) {
+           return partitions.get(partitionKey(school, className));
+       }
+
+
+       public synchronized List<Student> all() {
+           List<Student> all = new ArrayList<>(byName.size());
+           for (Partition p : partitions.values()) {
+               all.addAll(p.students);
+           }
+           return all;
+       }
+
+
+       public synchronized List<Student> all(String school, String className) {
+           Partition p = existing(school, className);
+           return p == null ? new ArrayList<>() : new ArrayList<>(p.students);
+       }
+
+
+       public synchronized int size() {
+           return byName.size();
+       }
+
+
+       public synchronized int size(String school, String className) {
+           Partition p = existing(school, className);
+           return p == null ? 0 : p.students.size();
+       }
+
+
+       public synchronized void replaceAll(List<Student> list) {
+           shared(() -> {
+               load(list);
+               fireReloaded();
+               persist();
+           });
+       }
+
+
+       private void fireReloaded() {
+           for (Map.Entry<String, List<RosterListener>> e : listeners.entrySet()) {
+               Partition p = partitions.get(e.getKey());
+               List<String> names = p == null ? new ArrayList<>() : names(p.students);
+               for (RosterListener l : e.getValue()) l.reloaded(names);
+           }
+           if (ChangeBus.hasListeners()) {
+               StoreChange change = new StoreChange();
+               change.reloaded = true;
+               ChangeBus.publish(change);
+           }
+       }
+
+
+       // Tells open views which students changed; nothing is built when no view is listening.
+       private void publish(Collection<Student> touched) {
+           if (touched.isEmpty() || !ChangeBus.hasListeners()) return;
+           StoreChange change = new StoreChange();
+           for (Student s : touched) {
+               change.add(s);
+           }
+           ChangeBus.publish(change);
+       }
+
+
+       // The listener first receives the partition's roster through reloaded(), under the same
+       // lock that orders every later event, so it never misses or double-applies a change.
+       public synchronized void addListener(String school, String className, RosterListener l) {
+           listeners.computeIfAbsent(partitionKey(school, className), k -> new CopyOnWriteArrayList<>()).add(l);
+           Partition p = existing(school, className);
+           l.reloaded(p == null ? new ArrayList<>() : names(p.students));
+       }
+
+
+       public void removeListener(String school, String className, RosterListener l) {
+           List<RosterListener> list = listeners.get(partitionKey(school, className));
+           if (list != null) list.remove(l);
+       }
+
+
+       private List<RosterListener> listenersOf(Partition p) {
+           return listeners.getOrDefault(partitionKey(p.school, p.className), Collections.emptyList());
+       }
+
+
+       private static List<String> names(List<Student> list) {
+           List<String> names = new ArrayList<>(list.size());
+           for (Student s : list) {
+               names.add(s.getFullName());
+           }
+           return names;
+       }
+
+
+       // Duplicate names in the input keep the first row, matching what findStudent always returned.
+       private void load(List<Student> list) {
+           byName.clear();
+           partitions.clear();
+           for (Student s : list) {
+               if (byName.putIfAbsent(key(s.firstName, s.lastName), s) == null) partitionOf(s).students.add(s);
+           }
+           for (Partition p : partitions.values()) {
+               p.leaderboard.build(p.students);
+               p.raffle.build(p.students);
+           }
+       }
+
+
+       public synchronized boolean contains(String fullName) {
+           return byName.containsKey(key(fullName));
+       }
+
+
+       public synchronized boolean add(Student s) {
+           return !addAll(Collections.singletonList(s)).isEmpty();
+       }
+
+
+       // Adds every student whose name is not taken yet and writes the snapshot once.
+       // Returns the students that were actually added.
+       public synchronized List<Student> addAll(List<Student> list) {
+           return sharedCall(() -> addAllNow(list));
+       }
+
+
+       private List<Student> addAllNow(List<Student> list) {
+           Map<Partition, Integer> firstIndex = new LinkedHashMap<>();
+           Map<Partition, List<Student>> addedTo = new LinkedHashMap<>();
+           List<Student> added = new ArrayList<>();
+           for (Student s : list) {
+               if (byName.putIfAbsent(key(s.firstName, s.lastName), s) != null) continue;
+               Partition p = partitionOf(s);
+               firstIndex.putIfAbsent(p, p.students.size());
+               p.students.add(s);
+               p.leaderboard.add(s);
+               p.raffle.update(s);
+               addedTo.computeIfAbsent(p, k -> new ArrayList<>()).add(s);
+               added.add(s);
+           }
+           if (added.isEmpty()) return added;
+           for (Map.Entry<Partition, List<Student>> e : addedTo.entrySet()) {
+               int from = firstIndex.get(e.getKey());
+               for (RosterListener l : listenersOf(e.getKey())) l.added(from, names(e.getValue()));
+           }
+           publish(added);
+           persist();
+           return added;
+       }
+
+
+       public synchronized Student find(String fullName) {
+           return byName.get(key(fullName));
+       }
+
+
+       public synchronized void addPoints(String fullName, int pts, String category) {
+           String key = key(fullName);
+           String cat = Award.category(category);
+           shared(() -> {
+               Student s = byName.get(key);
+               if (s == null) return;
+               record(Collections.singletonList(new Award(++ledgerSeq, System.currentTimeMillis(), key, pts, cat)));
+               applyPoints(s, pts);
+               publish(Collections.singletonList(s));
+               compactIfDue();
+           });
+       }
+
+
+       // Applies a batch under one lock, with one ledger write and one leaderboard pass per partition.
+       // Award keys are full names or StudentStore keys; awards for unknown students are dropped.
+       // Returns the awards that were applied, with their sequence numbers and timestamps filled in.
+       public synchronized List<Award> addPoints(List<Award> awards) {
+           return sharedCall(() -> {
+               long now = System.currentTimeMillis();
+               Map<Student, Integer> deltas = new LinkedHashMap<>();
+               List<Award> applied = new ArrayList<>();
+               for (Award a : awards) {
+                   String key = key(a.key);
+                   Student s = byName.get(key);
+                   if (s == null) continue;
+                   deltas.merge(s, a.delta, Integer::sum);
+                   applied.add(new Award(++ledgerSeq, now, key, a.delta, Award.category(a.category)));
+               }
+               if (applied.isEmpty()) return applied;
+               record(applied);
+               applyPoints(deltas);
+               publish(deltas.keySet());
+               compactIfDue();
+               return applied;
+           });
+       }
+
+
+       // Writes awards (or rename/delete markers) to the ledger, then adds them to the history; in
+       // snapshot-on-exit mode they wait in memory for the exit flush. The award paths call this
+       // before changing any points, so a failed write throws with memory left as it was.
+       private void record(List<Award> awards) {
+           if (Settings.persistence().writesThrough()) {
+               ledgerOffset += AwardLedger.append(awards);
+               ledgerSize += awards.size();
+           } else {
+               unlogged.addAll(awards);
+           }
+           for (Award a : awards) {
+               history.apply(a);
+           }
+       }
+
+
+       // Folds a long ledger into a snapshot; called once the recorded points are in memory.
+       private void compactIfDue() {
+           if (ledgerSize >= AwardLedger.COMPACT_AFTER) flush();
+       }
+
+
+       // A batch that touches a large share of a class rebuilds its leaderboard in one go
+       // instead of removing and re-inserting each student.
+       private void applyPoints(Map<Student, Integer> deltas) {
+           Map<Partition, List<Student>> touched = new LinkedHashMap<>();
+           for (Student s : deltas.keySet()) {
+               touched.computeIfAbsent(partitionOf(s), k -> new ArrayList<>()).add(s);
+           }
+           for (Map.Entry<Partition, List<Student>> e : touched.entrySet()) {
+               Partition p = e.getKey();
+               boolean rebuild = e.getValue().size() * 4 > p.students.size();
+               for (Student s : e.getValue()) {
+                   if (!rebuild) p.leaderboard.remove(s);
+                   s.points += deltas.get(s);
+                   if (!rebuild) p.leaderboard.add(s);
+                   p.raffle.update(s);
+               }
+               if (rebuild) p.leaderboard.build(p.students);
+           }
+       }
+
+
+       private void applyPoints(Student s, int pts) {
+           Partition p = partitionOf(s);
+           p.leaderboard.remove(s);
+           s.points += pts;
+           p.leaderboard.add(s);
+           p.raffle.update(s);
+       }
+
+
+       public synchronized void delete(String fullName) {
+           deleteAll(Collections.singletonList(fullName));
+       }
+
+
+       // Deletes every named student that exists, with one ledger write and one snapshot write.
+       // As with awards, the markers are recorded before anything changes in memory. Returns how
+       // many were deleted.
+       public synchronized int deleteAll(Collection<String> names) {
+           return sharedCall(() -> {
+               long now = System.currentTimeMillis();
+               List<Award> markers = new ArrayList<>();
+               Set<String> marked = new HashSet<>();
+               for (String fullName : names) {
+                   String key = key(fullName);
+                   if (byName.containsKey(key) && marked.add(key)) {
+                       markers.add(new Award(++ledgerSeq, now, key, 0, Award.DELETE));
+                   }
+               }
+               if (markers.isEmpty()) return 0;
+               record(markers);
+
+
+               List<Student> removed = new ArrayList<>();
+               for (Award marker : markers) {
+                   Student s = byName.remove(marker.key);
+                   Partition p = partitionOf(s);
+                   int index = p.students.indexOf(s);
+                   p.students.remove(index);
+                   p.leaderboard.remove(s);
+                   p.raffle.remove(s);
+                   for (RosterListener l : listenersOf(p)) l.removed(index);
+                   removed.add(s);
+               }
+               publish(removed);
+               persist();
+               return removed.size();
+           });
+       }
+
+
+       // Moves the named students that have no school or class into the given class and writes the
+       // snapshot once. Names that are unknown or already in a class are skipped. Returns how many moved.
+       public synchronized int claimUnassigned(Collection<String> names, String school, String className) {
+           String fromKey = partitionKey("", "");
+           if (partitionKey(school, className).equals(fromKey)) return 0;
+           return sharedCall(() -> {
+               Partition from = existing("", "");
+               if (from == null) return 0;
+               Partition to = partition(school, className);
+               int first = to.students.size();
+               List<Student> moved = new ArrayList<>();
+               for (String fullName : names) {
+                   Student s = byName.get(key(fullName));
+                   if (s == null || partitionOf(s) != from) continue;
+                   int index = from.students.indexOf(s);
+                   from.students.remove(index);
+                   from.leaderboard.remove(s);
+                   from.raffle.remove(s);
+                   for (RosterListener l : listenersOf(from)) l.removed(index);
+                   s.school = school;
+                   s.className = className;
+                   to.students.add(s);
+                   to.leaderboard.add(s);
+                   to.raffle.update(s);
+                   moved.add(s);
+               }
+               if (moved.isEmpty()) return 0;
+               for (RosterListener l : listenersOf(to)) l.added(first, names(moved));
+               if (ChangeBus.hasListeners()) {
+                   StoreChange change = new StoreChange();
+                   change.partitions.add(fromKey);
+                   for (Student s : moved) change.add(s);
+                   ChangeBus.publish(change);
+               }
+               persist();
+               return moved.size();
+           });
+       }
+
+
+       public synchronized boolean rename(String fullName, String newFirst, String newLast) {
+           return sharedCall(() -> renameNow(fullName, newFirst, newLast));
+       }
+
+
+       private boolean renameNow(String fullName, String newFirst, String newLast) {
+           String oldKey = key(fullName);
+           String newKey = key(newFirst, newLast);
+           Student s = byName.get(oldKey);
+           if (s == null) return false;
+           if (!newKey.equals(oldKey) && byName.containsKey(newKey)) return false;
+           if (!newKey.equals(oldKey)) {
+               record(Collections.singletonList(
+                       new Award(++ledgerSeq, System.currentTimeMillis(), oldKey + "\n" + newKey, 0, Award.RENAME)));
+           }
+           Partition p = partitionOf(s);
+           byName.remove(oldKey);
+           p.leaderboard.remove(s);
+           s.firstName = newFirst;
+           s.lastName = newLast;
+           byName.put(newKey, s);
+           p.leaderboard.add(s);
+           int index = p.students.indexOf(s);
+           for (RosterListener l : listenersOf(p)) l.changed(index, s.getFullName());
+           if (ChangeBus.hasListeners()) {
+               StoreChange change = new StoreChange();
+               change.students.add(oldKey);
+               change.add(s);
+               ChangeBus.publish(change);
+           }
+           persist();
+           return true;
+       }
+
+
+       public synchronized List<Student> top(String school, String className, int k) {
+           Partition p = existing(school, className);
+           return p == null ? new ArrayList<>() : p.leaderboard.top(k);
+       }
+
+
+       // School-wide: merges the top k of each of the school's partitions.
+       public synchronized List<Student> schoolTop(String school, int k) {
+           String prefix = key(school) + "\n";
+           List<Leaderboard> boards = new ArrayList<>();
+           for (Map.Entry<String, Partition> e : partitions.entrySet()) {
+               if (e.getKey().startsWith(prefix)) boards.add(e.getValue().leaderboard);
+           }
+           return Leaderboard.mergeTop(boards, k);
+       }
+
+
+       // Across every partition.
+       public synchronized List<Student> top(int k) {
+           List<Leaderboard> boards = new ArrayList<>();
+           for (Partition p : partitions.values()) {
+               boards.add(p.leaderboard);
+           }
+           return Leaderboard.mergeTop(boards, k);
+       }
+
+
+       // Position within the student's own class, or 0 if the student does not exist.
+       public synchronized int rank(String fullName) {
+           Student s = byName.get(key(fullName));
+           return s == null ? 0 : partitionOf(s).leaderboard.rank(s);
+       }
+
+
+       public synchronized int classSize(String fullName) {
+           Student s = byName.get(key(fullName));
+           return s == null ? 0 : partitionOf(s).students.size();
+       }
+
+
+       public synchronized List<Student> raffleEligible(String school, String className) {
+           Partition p = existing(school, className);
+           return p == null ? new ArrayList<>() : p.raffle.eligible();
+       }
+
+
+       public synchronized List<Student> raffleEligible() {
+           List<Student> all = new ArrayList<>();
+           for (Partition p : partitions.values()) {
+               all.addAll(p.raffle.eligible());
+           }
+           return all;
+       }
+
+
+       public synchronized Student drawRaffleWinner(String school, String className) {
+           Partition p = existing(school, className);
+           return p == null ? null : p.raffle.draw(ThreadLocalRandom.current());
+       }
+
+
+       // Picks a partition in proportion to its tickets, then a winner inside it.
+       public synchronized Student drawRaffleWinner() {
+           long total = 0;
+           for (Partition p : partitions.values()) {
+               total += p.raffle.total();
+           }
+           if (total <= 0) return null;
+           long ticket = ThreadLocalRandom.current().nextLong(total);
+           for (Partition p : partitions.values()) {
+               if (ticket < p.raffle.total()) return p.raffle.draw(ThreadLocalRandom.current());
+               ticket -= p.raffle.total();
+           }
+           return null;
+       }
+
+
+       // [from, to) in days, from the pre-aggregated daily buckets.
+       public synchronized int pointsBetween(String fullName, LocalDate from, LocalDate to) {
+           StudentHistory h = history.of(key(fullName));
+           return h == null ? 0 : h.sum(from.toEpochDay(), to.toEpochDay());
+       }
+
+
+       // The student's last k awards, newest first, from the per-award arrays.
+       public synchronized List<Award> recentAwards(String fullName, int k) {
+           String key = key(fullName);
+           StudentHistory h = history.of(key);
+           if (h == null) return Collections.emptyList();
+           List<Award> recent = new ArrayList<>(Math.min(k, h.size));
+           for (int i = h.size - 1; i >= 0 && recent.size() < k; i--) {
+               recent.add(new Award(0, h.times[i], key, h.deltas[i], history.categoryName(h.categories[i])));
+           }
+           return recent;
+       }
+
+
+       // Category name -> points for [from, to), in Award.KNOWN order.
+       public synchronized Map<String, Integer> categoryPoints(String fullName, LocalDate from, LocalDate to) {
+           Map<String, Integer> totals = new LinkedHashMap<>();
+           StudentHistory h = history.of(key(fullName));
+           if (h == null) return totals;
+           for (int c = 0; c < history.categoryCount(); c++) {
+               if (!h.hasCategory(c)) continue;
+               int sum = h.sum(c, from.toEpochDay(), to.toEpochDay());
+               if (sum != 0) totals.put(history.categoryName(c), sum);
+           }
+           return totals;
+       }
+
+
+       private void persist() {
+           if (Settings.persistence().writesThrough()) flush();
+       }
+
+
+       // Writes a full snapshot that includes every award so far, then drops the ledger.
+       // In snapshot-on-exit mode this copy has not been following other processes, so its
+       // snapshot replaces whatever they wrote.
+       public synchronized void flush() {
+           long start = Metrics.start();
+           DataLock.run(() -> {
+               long stamp;
+               do {
+                   stamp = ThreadLocalRandom.current().nextLong();
+               } while (stamp == 0 || stamp == version);
+               version = stamp;
+               if (!unlogged.isEmpty()) {
+                   AwardLedger.append(unlogged);
+                   unlogged.clear();
+               }
+               // Archive first: a crash before the clear leaves rows in both files, and the
+               // history skips sequence numbers it already has.
+               historyOffset = AwardLedger.archive();
+               Storage.get().writeRoster(all(), ledgerSeq, version);
+               AwardLedger.clear();
+               ledgerSize = 0;
+               ledgerOffset = 0;
+           });
+           Metrics.STORE_FLUSH.stop(start);
+       }
+   }
+
+
+   // -------------------- CHANGE BUS --------------------
+
+
+   // What one or more store changes touched, as StudentStore.key and StudentStore.partitionKey
+   // values. reloaded means the whole roster may have changed.
+   static class StoreChange {
+       final Set<String> students = new HashSet<>();
+       final Set<String> partitions = new HashSet<>();
+       boolean reloaded;
+
+
+       void add(Student s) {
+           students.add(StudentStore.key(s.firstName, s.lastName));
+           partitions.add(StudentStore.partitionKey(s.school, s.className));
+       }
+
+
+       void merge(StoreChange other) {
+           students.addAll(other.students);
+           partitions.addAll(other.partitions);
+           reloaded |= other.reloaded;
+       }
+
+
+       // Whether a view of this student and its class leaderboard could be out of date.
+       // A null partition stands for a view of the whole store.
+       boolean affects(String studentKey, String partition) {
+           return reloaded || partition == null || students.contains(studentKey) || partitions.contains(partition);
+       }
+   }
+
+
+   // The student store publishes every award, add, delete, rename and reload here, from whatever
+   // thread made it. Changes published within one frame are merged and handed to each listener
+   // once, on the EDT, so a burst of awards costs an open window one refresh.
+   static class ChangeBus {
+       static final int FRAME_MS = 16;
+
+
+       interface Listener {
+           void changed(StoreChange change);
+       }
+
+
+       private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+       private static StoreChange pending;
+       private static javax.swing.Timer frame; // EDT only
+
+
+       public static void subscribe(Listener l) {
+           listeners.add(l);
+       }
+
+
+       public static void unsubscribe(Listener l) {
+           listeners.remove(l);
+       }
+
+
+       // Lets the store skip building changes in headless runs and when no window is open.
+       public static boolean hasListeners() {
+           return !listeners.isEmpty();
+       }
+
+
+       public static void publish(StoreChange change) {
+           synchronized (ChangeBus.class) {
+               if (pending != null) {
+                   pending.merge(change);
+                   return;
+               }
+               pending = change;
+           }
+           SwingUtilities.invokeLater(() -> {
+               if (frame == null) {
+                   frame = new javax.swing.Timer(FRAME_MS, e -> deliver());
+                   frame.setRepeats(false);
+               }
+               frame.restart();
+           });
+       }
+
+
+       private static void deliver() {
+           StoreChange change;
+           synchronized (ChangeBus.class) {
+               change = pending;
+               pending = null;
+           }
+           if (change == null) return;
+           for (Listener l : listeners) {
+               l.changed(change);
+           }
+       }
+   }
+
+
+   // -------------------- LEADERBOARD VIEW MODEL --------------------
+
+
+   // Top-3 and raffle rows for one scope (a class, a school or everyone), shared by every open
+   // window showing that scope. Each model listens to the ChangeBus once, recomputes off the EDT
+   // when a change touches its scope and swaps the new rows in on the EDT, so the cost of a
+   // refresh does not grow with the number of windows. Acquire and release on the EDT.
+   static class LeaderboardViewModel {
+       private static final Map<String, LeaderboardViewModel> shared = new HashMap<>();
+
+
+       final Rows top = new Rows();
+       final Rows raffle = new Rows();
+
+
+       private final String cacheKey;
+       private final Predicate<StoreChange> affects;
+       private final Supplier<List<Student>> topSource;
+       private final Supplier<List<Student>> raffleSource;
+       private final ChangeBus.Listener onChange = this::storeChanged;
+       private int users;
+       private boolean computing;
+       private boolean stale;
+
+
+       private LeaderboardViewModel(String cacheKey, Predicate<StoreChange> affects,
+                                    Supplier<List<Student>> topSource, Supplier<List<Student>> raffleSource) {
+           this.cacheKey = cacheKey;
+           this.affects = affects;
+           this.topSource = topSource;
+           this.raffleSource = raffleSource;
+       }
+
+
+       public static LeaderboardViewModel forClass(String school, String className) {
+           String partition = StudentStore.partitionKey(school, className);
+           return acquire("class\n" + partition, c -> c.reloaded || c.partitions.contains(partition),
+                   () -> CSVHandler.top3(school, className), () -> CSVHandler.raffleEligible(school, className));
+       }
+
+
+       // Top 3 only; the raffle is drawn per class.
+       public static LeaderboardViewModel forSchool(String school) {
+           String prefix = StudentStore.key(school) + "\n";
+           return acquire("school\n" + prefix, c -> c.reloaded || c.partitions.stream().anyMatch(p -> p.startsWith(prefix)),
+                   () -> CSVHandler.schoolTop3(school), ArrayList::new);
+       }
+
+
+       public static LeaderboardViewModel forEveryone() {
+           return acquire("all", c -> true, CSVHandler::top3, CSVHandler::raffleEligible);
+       }
+
+
+       private static LeaderboardViewModel acquire(String cacheKey, Predicate<StoreChange> affects,
+                                                   Supplier<List<Student>> topSource, Supplier<List<Student>> raffleSource) {
+           LeaderboardViewModel model = shared.get(cacheKey);
+           if (model == null) {
+               model = new LeaderboardViewModel(cacheKey, affects, topSource, raffleSource);
+               shared.put(cacheKey, model);
+               ChangeBus.subscribe(model.onChange);
+               model.recompute();
+           }
+           model.users++;
+           return model;
+       }
+
+
+       // The last window using this model is closing: stop listening and drop it from the cache.
+       public void release() {
+           if (--users > 0) return;
+           ChangeBus.unsubscribe(onChange);
+           shared.remove(cacheKey);
+       }
+
+
+       private void storeChanged(StoreChange change) {
+           if (affects.test(change)) recompute();
+       }
+
+
+       // One computation in flight at a time; changes that arrive meanwhile trigger one more.
+       private void recompute() {
+           if (computing) {
+               stale = true;
+               return;
+           }
+           computing = true;
+           DataAccess.IO.execute(() -> {
+               List<String> topRows = null;
+               List<String> raffleRows = null;
+               try {
+                   topRows = rows(topSource.get());
+                   raffleRows = rows(raffleSource.get());
+               } catch (Exception e) {
+                   e.printStackTrace();
+               }
+               List<String> newTop = topRows;
+               List<String> newRaffle = raffleRows;
+               SwingUtilities.invokeLater(() -> {
+                   if (newTop != null) top.set(newTop);
+                   if (newRaffle != null) raffle.set(newRaffle);
+                   computing = false;
+                   if (stale) {
+                       stale = false;
+                       recompute();
+                   }
+               });
+           });
+       }
+
+
+       private static List<String> rows(List<Student> list) {
+           List<String> rows = new ArrayList<>(list.size());
+           for (Student s : list) {
+               rows.add(s.getFullName() + " - " + s.points + " pts");
+           }
+           return Collections.unmodifiableList(rows);
+       }
+
+
+       // Read-only list model over an immutable row list that is replaced whole.
+       static class Rows extends AbstractListModel<String> {
+           private List<String> items = Collections.emptyList();
+
+
+           @Override
+           public int getSize() {
+               return items.size();
+           }
+
+
+           @Override
+           public String getElementAt(int index) {
+               return items.get(index);
+           }
+
+
+           void set(List<String> next) {
+               if (next.equals(items)) return;
+               int before = items.size();
+               items = next;
+               int common = Math.min(before, next.size());
+               if (common > 0) fireContentsChanged(this, 0, common - 1);
+               if (next.size() > before) fireIntervalAdded(this, before, next.size() - 1);
+               if (next.size() < before) fireIntervalRemoved(this, next.size(), before - 1);
+           }
+       }
+   }
+
+
+   // One school/class roster: insertion order for the dashboard list, plus its own
+   // leaderboard and raffle.
+   static class Partition {
+       final String school;
+       final String className;
+       final List<Student> students = new ArrayList<>();
+       final Leaderboard leaderboard = new Leaderboard();
+       final Raffle raffle = new Raffle();
+
+
+       Partition(String school, String className) {
+           this.school = school;
+           this.className = className;
+       }
+   }
+
+
+   // Roster membership changes for one partition, by position in its insertion order. Called with
+   // the store lock held and possibly off the EDT, so implementations should only hand work off.
+   interface RosterListener {
+       void added(int index, List<String> names);
+
+
+       void removed(int index);
+
+
+       void changed(int index, String name);
+
+
+       void reloaded(List<String> names);
+   }
+
+
+   // -------------------- STUDENT LIST MODEL --------------------
+
+
+   // List model for TeacherDashboard's roster. It mirrors the store's names on the EDT and fires
+   // only the exact interval for each add, delete or rename, so a refresh costs the size of the
+   // change rather than the size of the roster.
+   static class StudentListModel extends AbstractListModel<String> implements RosterListener {
+       private final List<String> names = new ArrayList<>();
+       private final String school;
+       private final String className;
+
+
+       public StudentListModel(String school, String className) {
+           this.school = school;
+           this.className = className;
+           DataAccess.IO.execute(() -> StudentStore.get().addListener(school, className, this));
+       }
+
+
+       public void detach() {
+           StudentStore.get().removeListener(school, className, this);
+       }
+
+
+       @Override
+       public int getSize() {
+           return names.size();
+       }
+
+
+       @Override
+       public String getElementAt(int index) {
+           return names.get(index);
+       }
+
+
+       @Override
+       public void added(int index, List<String> added) {
+           SwingUtilities.invokeLater(() -> {
+               names.addAll(index, added);
+               fireIntervalAdded(this, index, index + added.size() - 1);
+           });
+       }
+
+
+       @Override
+       public void removed(int index) {
+           SwingUtilities.invokeLater(() -> {
+               names.remove(index);
+               fireIntervalRemoved(this, index, index);
+           });
+       }
+
+
+       @Override
+       public void changed(int index, String name) {
+           SwingUtilities.invokeLater(() -> {
+               names.set(index, name);
+               fireContentsChanged(this, index, index);
+           });
+       }
+
+
+       @Override
+       public void reloaded(List<String> all) {
+           SwingUtilities.invokeLater(() -> {
+               int old = names.size();
+               names.clear();
+               if (old > 0) fireIntervalRemoved(this, 0, old - 1);
+               names.addAll(all);
+               if (!all.isEmpty()) fireIntervalAdded(this, 0, all.size() - 1);
+           });
+       }
+   }
+
+
+   // -------------------- AWARD LEDGER --------------------
+
+
+   static class Award {
+       static final String GENERAL = "General";
+       static final String[] CATEGORIES = {"Participation", "Teamwork", "On Task", "Behaviour"};
+       // Every category an award may carry, GENERAL first; the history indexes its totals by this.
+       static final List<String> KNOWN = known();
+       // Roster changes recorded in the ledger so the history follows them. A rename's key is
+       // "oldKey\nnewKey"; both carry a zero delta.
+       static final String RENAME = "#rename";
+       static final String DELETE = "#delete";
+
+
+       long seq;
+       long timestamp;
+       String key;      // StudentStore.key of the student
+       int delta;
+       String category;
+
+
+       public Award(long seq, long timestamp, String key, int delta, String category) {
+           this.seq = seq;
+           this.timestamp = timestamp;
+           this.key = key;
+           this.delta = delta;
+           this.category = category;
+       }
+
+
+       boolean isMarker() {
+           return category.equals(RENAME) || category.equals(DELETE);
+       }
+
+
+       // Awards given without a category count as GENERAL. Names match KNOWN ignoring case and
+       // come back in its spelling; anything else throws IllegalArgumentException.
+       static String category(String name) {
+           if (name == null || name.isBlank()) return GENERAL;
+           int id = id(name);
+           if (id < 0) throw new IllegalArgumentException("unknown category \"" + name.trim() + "\"; expected one of " + KNOWN);
+           return KNOWN.get(id);
+       }
+
+
+       // Index in KNOWN, or -1.
+       static int id(String name) {
+           String trimmed = name.trim();
+           for (int i = 0; i < KNOWN.size(); i++) {
+               if (KNOWN.get(i).equalsIgnoreCase(trimmed)) return i;
+           }
+           return -1;
+       }
+
+
+       private static List<String> known() {
+           List<String> known = new ArrayList<>();
+           known.add(GENERAL);
+           known.addAll(Arrays.asList(CATEGORIES));
+           return Collections.unmodifiableList(known);
+       }
+   }
+
+
+   // Append-only log of point awards: "seq,timestamp,delta,category,key" per line.
+   // The key goes last so it is the only field that may contain commas.
+   // Compaction moves the rows to history.log, which keeps every award ever made.
+   static class AwardLedger {
+       static final String FILE = Settings.dataFile("awards.log");
+       static final String HISTORY_FILE = Settings.dataFile("history.log");
+       static final int COMPACT_AFTER = 500;
+
+
+       // Returns the number of bytes appended.
+       public static int append(Award a) {
+           return append(Collections.singletonList(a));
+       }
+
+
+       // The whole batch goes out in one write; a failed write throws rather than losing the awards.
+       public static int append(List<Award> awards) {
+           StringBuilder rows = new StringBuilder();
+           for (Award a : awards) {
+               rows.append(row(a));
+           }
+           try (FileWriter fw = new FileWriter(FILE, StandardCharsets.UTF_8, true)) {
+               fw.write(rows.toString());
+               int bytes = rows.toString().getBytes(StandardCharsets.UTF_8).length;
+               Metrics.wrote(bytes);
+               return bytes;
+           } catch (IOException e) {
+               throw new UncheckedIOException("Could not write " + FILE, e);
+           }
+       }
+
+
+       static String row(Award a) {
+           return a.seq + "," + a.timestamp + "," + a.delta + ","
+                   + CsvReader.escape(a.category) + "," + CsvReader.escape(a.key) + "\n";
+       }
+
+
+       public static long size() {
+           return new File(FILE).length();
+       }
+
+
+       public static long historySize() {
+           return new File(HISTORY_FILE).length();
+       }
+
+
+       public static List<Award> readFrom(long offset) {
+           List<Award> list = new ArrayList<>();
+           read(FILE, offset, list::add);
+           return list;
+       }
+
+
+       // Streams history.log from the given byte offset and returns the offset of its end.
+       public static long readHistory(long offset, Consumer<Award> sink) {
+           long end = historySize();
+           if (end > offset) read(HISTORY_FILE, offset, sink);
+           return end;
+       }
+
+
+       // Appends the whole ledger to history.log and returns history.log's new size.
+       public static long archive() {
+           Path ledger = Paths.get(FILE);
+           Path history = Paths.get(HISTORY_FILE);
+           if (!Files.exists(ledger)) return historySize();
+           try (FileChannel in = FileChannel.open(ledger, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(history, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+               long size = in.size();
+               for (long done = 0; done < size; ) {
+                   done += in.transferTo(done, size - done, out);
+               }
+               // End a torn last row here so it cannot swallow the first row of the next archive.
+               ByteBuffer last = ByteBuffer.allocate(1);
+               if (size > 0 && in.read(last, size - 1) == 1 && last.get(0) != '\n') {
+                   out.write(ByteBuffer.wrap(new byte[] {'\n'}));
+               }
+               out.force(true);
+               Metrics.wrote(size);
+               return out.size();
+           } catch (Exception e) {
+               e.printStackTrace();
+               return historySize();
+           }
+       }
+
+
+       // Entries from the given byte offset on. A torn last line from a crash mid-append fails
+       // to parse and is skipped.
+       private static void read(String file, long offset, Consumer<Award> sink) {
+           File f = new File(file);
+           if (!f.exists()) return;
+
+
+           try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+               long bytes = ch.size() - offset;
+               long rows = 0;
+               ch.position(offset);
+               CsvReader csv = new CsvReader(Channels.newReader(ch, StandardCharsets.UTF_8));
+               while (csv.nextRow()) {
+                   rows++;
+                   try {
+                       long entrySeq = csv.nextLong();
+                       long timestamp = csv.nextLong();
+                       int delta = csv.nextInt();
+                       String category = csv.nextField();
+                       String key = csv.nextField();
+                       if (key == null) continue;
+                       sink.accept(new Award(entrySeq, timestamp, key, delta, category));
+                   } catch (NumberFormatException ignored) {
+                   }
+               }
+               Metrics.read(bytes, rows);
+           } catch (Exception e) {
+               e.printStackTrace();
+           }
+       }
+
+
+       public static void clear() {
+           File f = new File(FILE);
+           if (f.exists()) f.delete();
+       }
+   }
+
+
+   // -------------------- AWARD HISTORY --------------------
+
+
+   // Every award per student, rebuilt from history.log and the ledger. Sequence numbers only
+   // grow, so anything at or below the last one applied is a duplicate and is skipped.
+   // Categories are their index in Award.KNOWN; older logs with other names count them as GENERAL.
+   static class History {
+       private final Map<String, StudentHistory> byKey = new HashMap<>();
+       private long lastSeq;
+       private long cachedDay;
+       private long cachedFrom = 1;  // [cachedFrom, cachedTo) are the millis of cachedDay
+       private long cachedTo = 0;
+
+
+       public void apply(Award a) {
+           if (a.seq <= lastSeq) return;
+           lastSeq = a.seq;
+           if (a.category.equals(Award.RENAME)) {
+               int split = a.key.indexOf('\n');
+               if (split < 0) return;
+               StudentHistory h = byKey.remove(a.key.substring(0, split));
+               if (h != null) byKey.put(a.key.substring(split + 1), h);
+           } else if (a.category.equals(Award.DELETE)) {
+               byKey.remove(a.key);
+           } else {
+               byKey.computeIfAbsent(a.key, k -> new StudentHistory())
+                       .add(a.timestamp, day(a.timestamp), a.delta, categoryId(a.category));
+           }
+       }
+
+
+       public void clear() {
+           byKey.clear();
+           lastSeq = 0;
+       }
+
+
+       public StudentHistory of(String key) {
+           return byKey.get(key);
+       }
+
+
+       public int categoryCount() {
+           return Award.KNOWN.size();
+       }
+
+
+       public String categoryName(int id) {
+           return Award.KNOWN.get(id);
+       }
+
+
+       private int categoryId(String name) {
+           return Math.max(Award.id(name), 0);
+       }
+
+
+       // Local calendar day of a timestamp, as days since 1970-01-01. Awards come in time order,
+       // so the previous day's bounds nearly always answer it.
+       private long day(long millis) {
+           if (millis >= cachedFrom && millis < cachedTo) return cachedDay;
+           ZoneId zone = ZoneId.systemDefault();
+           LocalDate date = Instant.ofEpochMilli(millis).atZone(zone).toLocalDate();
+           cachedFrom = date.atStartOfDay(zone).toInstant().toEpochMilli();
+           cachedTo = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+           cachedDay = date.toEpochDay();
+           return cachedDay;
+       }
+   }
+
+
+   // One student's awards in parallel primitive arrays (13 bytes per award), plus one bucket per
+   // day with an award: the day's total and, per category the student has, that category's total.
+   // Range sums binary-search the sorted days and add up at most one int per day; the per-award
+   // arrays answer the most recent awards.
+   static class StudentHistory {
+       long[] times = new long[4];
+       int[] deltas = new int[4];
+       byte[] categories = new byte[4]; // index in Award.KNOWN
+       int size;
+
+
+       private long[] days = new long[2];
+       private int[] dayTotals = new int[2];
+       private int[][] categoryTotals = new int[0][]; // [category][bucket], null if never awarded
+       private int dayCount;
+
+
+       void add(long time, long day, int delta, int category) {
+           if (size == times.length) {
+               times = Arrays.copyOf(times, size * 2);
+               deltas = Arrays.copyOf(deltas, size * 2);
+               categories = Arrays.copyOf(categories, size * 2);
+           }
+           times[size] = time;
+           deltas[size] = delta;
+           categories[size] = (byte) category;
+           size++;
+
+
+           int bucket = bucket(day);
+           dayTotals[bucket] += delta;
+           if (category >= categoryTotals.length) categoryTotals = Arrays.copyOf(categoryTotals, category + 1);
+           if (categoryTotals[category] == null) categoryTotals[category] = new int[days.length];
+           categoryTotals[category][bucket] += delta;
+       }
+
+
+       // Awards arrive in time order, so the bucket is nearly always the last one or a new one
+       // after it; awards stamped by another machine's clock may land a little earlier.
+       private int bucket(long day) {
+           if (dayCount > 0 && days[dayCount - 1] == day) return dayCount - 1;
+           int at = dayCount > 0 && days[dayCount - 1] < day ? dayCount : lowerBound(day);
+           if (at < dayCount && days[at] == day) return at;
+
+
+           if (dayCount == days.length) {
+               int capacity = days.length * 2;
+               days = Arrays.copyOf(days, capacity);
+               dayTotals = Arrays.copyOf(dayTotals, capacity);
+               for (int c = 0; c < categoryTotals.length; c++) {
+                   if (categoryTotals[c] != null) categoryTotals[c] = Arrays.copyOf(categoryTotals[c], capacity);
+               }
+           }
+           int moved = dayCount - at;
+           System.arraycopy(days, at, days, at + 1, moved);
+           System.arraycopy(dayTotals, at, dayTotals, at + 1, moved);
+           for (int[] totals : categoryTotals) {
+               if (totals != null) System.arraycopy(totals, at, totals, at + 1, moved);
+           }
+           days[at] = day;
+           dayTotals[at] = 0;
+           for (int[] totals : categoryTotals) {
+               if (totals != null) totals[at] = 0;
+           }
+           dayCount++;
+           return at;
+       }
+
+
+       private int lowerBound(long day) {
+           int lo = 0;
+           int hi = dayCount;
+           while (lo < hi) {
+               int mid = (lo + hi) >>> 1;
+               if (days[mid] < day) lo = mid + 1;
+               else hi = mid;
+           }
+           return lo;
+       }
+
+
+       boolean hasCategory(int category) {
+           return category < categoryTotals.length && categoryTotals[category] != null;
+       }
+
+
+       // Days [fromDay, toDay).
+       int sum(long fromDay, long toDay) {
+           return sum(dayTotals, fromDay, toDay);
+       }
+
+
+       int sum(int category, long fromDay, long toDay) {
+           return hasCategory(category) ? sum(categoryTotals[category], fromDay, toDay) : 0;
+       }
+
+
+       private int sum(int[] totals, long fromDay, long toDay) {
+           int sum = 0;
+           for (int i = lowerBound(fromDay), end = lowerBound(toDay); i < end; i++) {
+               sum += totals[i];
+           }
+           return sum;
+       }
+   }
+
+
+   // -------------------- LEADERBOARD --------------------
+
+
+   // Order-statistic treap over the roster, sorted by points (high first) and then by name.
+   // Insert, remove and rank are O(log N); top(k) walks only the first k nodes.
+   // Callers must remove a student before changing its points or name and add it back after.
+   static class Leaderboard {
+       static final Comparator<Student> ORDER = (a, b) -> {
+           int c = Integer.compare(b.points, a.points);
+           if (c == 0) c = a.lastName.compareToIgnoreCase(b.lastName);
+           if (c == 0) c = a.firstName.compareToIgnoreCase(b.firstName);
+           if (c == 0) c = a.lastName.compareTo(b.lastName);
+           if (c == 0) c = a.firstName.compareTo(b.firstName);
+           return c;
+       };
+
+
+       private static class Node {
+           final Student student;
+           final int priority;
+           Node left, right;
+           int size = 1;
+
+
+           Node(Student student, int priority) {
+               this.student = student;
+               this.priority = priority;
+           }
+       }
+
+
+       private Node root;
+       private int seed = 0x2545F491;
+
+
+       public int size() {
+           return size(root);
+       }
+
+
+       // Replaces the contents in O(N log N) for the sort plus O(N) for a balanced build.
+       public void build(List<Student> list) {
+           Student[] sorted = list.toArray(new Student[0]);
+           Arrays.sort(sorted, ORDER);
+           root = build(sorted, 0, sorted.length, 0);
+       }
+
+
+       // Priorities fall with depth so the balanced shape is already a valid treap; later
+       // inserts draw random priorities and settle below it.
+       private Node build(Student[] sorted, int from, int to, int depth) {
+           if (from >= to) return null;
+           int mid = (from + to) >>> 1;
+           Node t = new Node(sorted[mid], Integer.MAX_VALUE - depth);
+           t.left = build(sorted, from, mid, depth + 1);
+           t.right = build(sorted, mid + 1, to, depth + 1);
+           update(t);
+           return t;
+       }
+
+
+       public void add(Student s) {
+           root = insert(root, new Node(s, nextPriority()));
+       }
+
+
+       public void remove(Student s) {
+           root = remove(root, s);
+       }
+
+
+       private Node insert(Node t, Node n) {
+           if (t == null) return n;
+           if (n.priority > t.priority) {
+               Node[] parts = split(t, n.student);
+               n.left = parts[0];
+               n.right = parts[1];
+               update(n);
+               return n;
+           }
+           if (ORDER.compare(n.student, t.student) < 0) {
+               t.left = insert(t.left, n);
+           } else {
+               t.right = insert(t.right, n);
+           }
+           update(t);
+           return t;
+       }
+
+
+       private Node remove(Node t, Student s) {
+           if (t == null) return null;
+           int c = ORDER.compare(s, t.student);
+           if (c == 0) return merge(t.left, t.right);
+           if (c < 0) {
+               t.left = remove(t.left, s);
+           } else {
+               t.right = remove(t.right, s);
+           }
+           update(t);
+           return t;
+       }
+
+
+       public int rank(Student s) {
+           int before = 0;
+           Node t = root;
+           while (t != null) {
+               int c = ORDER.compare(s, t.student);
+               if (c == 0) return before + size(t.left) + 1;
+               if (c < 0) {
+                   t = t.left;
+               } else {
+                   before += size(t.left) + 1;
+                   t = t.right;
+               }
+           }
+           return 0;
+       }
+
+
+       // k-way merge of each board's own top k; O(B * k) to gather plus O(k log B) to merge.
+       static List<Student> mergeTop(List<Leaderboard> boards, int k) {
+           if (boards.size() == 1) return boards.get(0).top(k);
+           PriorityQueue<Head> heap = new PriorityQueue<>(Math.max(1, boards.size()));
+           int total = 0;
+           for (Leaderboard b : boards) {
+               total += b.size();
+               Iterator<Student> it = b.top(k).iterator();
+               if (it.hasNext()) heap.add(new Head(it.next(), it));
+           }
+           List<Student> out = new ArrayList<>(Math.min(k, total));
+           while (out.size() < k && !heap.isEmpty()) {
+               Head head = heap.poll();
+               out.add(head.student);
+               if (head.rest.hasNext()) heap.add(new Head(head.rest.next(), head.rest));
+           }
+           return out;
+       }
+
+
+       private static class Head implements Comparable<Head> {
+           final Student student;
+           final Iterator<Student> rest;
+
+
+           Head(Student student, Iterator<Student> rest) {
+               this.student = student;
+               this.rest = rest;
+           }
+
+
+           @Override
+           public int compareTo(Head other) {
+               return ORDER.compare(student, other.student);
+           }
+       }
+
+
+       public List<Student> top(int k) {
+           List<Student> out = new ArrayList<>(Math.min(k, size()));
+           Deque<Node> stack = new ArrayDeque<>();
+           Node t = root;
+           while (out.size() < k && (t != null || !stack.isEmpty())) {
+               while (t != null) {
+                   stack.push(t);
+                   t = t.left;
+               }
+               t = stack.pop();
+               out.add(t.student);
+               t = t.right;
+           }
+           return out;
+       }
+
+
+       // Splits t into (< s, >= s).
+       private Node[] split(Node t, Student s) {
+           if (t == null) return new Node[2];
+           if (ORDER.compare(t.student, s) < 0) {
+               Node[] parts = split(t.right, s);
+               t.right = parts[0];
+               update(t);
+               parts[0] = t;
+               return parts;
+           }
+           Node[] parts = split(t.left, s);
+           t.left = parts[1];
+           update(t);
+           parts[1] = t;
+           return parts;
+       }
+
+
+       private Node merge(Node a, Node b) {
+           if (a == null) return b;
+           if (b == null) return a;
+           if (a.priority > b.priority) {
+               a.right = merge(a.right, b);
+               update(a);
+               return a;
+           }
+           b.left = merge(a, b.left);
+           update(b);
+           return b;
+       }
+
+
+       private static int size(Node t) {
+           return t == null ? 0 : t.size;
+       }
+
+
+       private static void update(Node t) {
+           t.size = 1 + size(t.left) + size(t.right);
+       }
+
+
+       private int nextPriority() {
+           seed ^= seed << 13;
+           seed ^= seed >>> 17;
+           seed ^= seed << 5;
+           return seed;
+       }
+   }
+
+
+   // -------------------- RAFFLE --------------------
+
+
+   // Raffle-eligible students, kept up to date as points change instead of rescanning the roster.
+   // Each eligible student owns a slot in a Fenwick tree weighted by points, so a weighted draw
+   // and a points update are both O(log N). Freed slots are reused.
+   static class Raffle {
+       private final Map<Student, Integer> slots = new LinkedHashMap<>();
+       private final Deque<Integer> freeSlots = new ArrayDeque<>();
+       private long[] weights = new long[16];
+       private Student[] owners = new Student[16];
+       private long[] tree = new long[17];   // 1-based Fenwick tree over weights
+       private int used;                     // slots handed out so far
+       private long total;
+
+
+       public void build(List<Student> list) {
+           slots.clear();
+           freeSlots.clear();
+           used = 0;
+           total = 0;
+           weights = new long[Math.max(16, list.size())];
+           owners = new Student[weights.length];
+           for (Student s : list) {
+               if (!s.isRaffleEligible()) continue;
+               slots.put(s, used);
+               owners[used] = s;
+               weights[used++] = tickets(s);
+               total += tickets(s);
+           }
+           rebuildTree();
+       }
+
+
+       // Call after s joins the roster or its points change.
+       public void update(Student s) {
+           Integer slot = slots.get(s);
+           if (!s.isRaffleEligible()) {
+               if (slot != null) remove(s);
+               return;
+           }
+           if (slot == null) {
+               slot = freeSlots.isEmpty() ? newSlot() : freeSlots.pop();
+               slots.put(s, slot);
+               owners[slot] = s;
+           }
+           setWeight(slot, tickets(s));
+       }
+
+
+       public void remove(Student s) {
+           Integer slot = slots.remove(s);
+           if (slot == null) return;
+           setWeight(slot, 0);
+           owners[slot] = null;
+           freeSlots.push(slot);
+       }
+
+
+       private static long tickets(Student s) {
+           return Math.max(0, s.points);
+       }
+
+
+       public List<Student> eligible() {
+           return new ArrayList<>(slots.keySet());
+       }
+
+
+       public long total() {
+           return total;
+       }
+
+
+       public Student draw(Random random) {
+           if (total <= 0) return null;
+           return owners[find(random.nextLong(total))];
+       }
+
+
+       // Smallest slot whose prefix sum exceeds ticket, by descending the tree bit by bit.
+       private int find(long ticket) {
+           int pos = 0;
+           for (int step = Integer.highestOneBit(weights.length); step > 0; step >>= 1) {
+               int next = pos + step;
+               if (next <= weights.length && tree[next] <= ticket) {
+                   pos = next;
+                   ticket -= tree[next];
+               }
+           }
+           return pos;
+       }
+
+
+       private void setWeight(int slot, long weight) {
+           long delta = weight - weights[slot];
+           if (delta == 0) return;
+           weights[slot] = weight;
+           total += delta;
+           for (int i = slot + 1; i <= weights.length; i += i & -i) tree[i] += delta;
+       }
+
+
+       private int newSlot() {
+           if (used == weights.length) {
+               weights = Arrays.copyOf(weights, used * 2);
+               owners = Arrays.copyOf(owners, used * 2);
+               rebuildTree();
+           }
+           return used++;
+       }
+
+
+       private void rebuildTree() {
+           tree = new long[weights.length + 1];
+           for (int i = 1; i <= weights.length; i++) {
+               tree[i] += weights[i - 1];
+               int parent = i + (i & -i);
+               if (parent <= weights.length) tree[parent] += tree[i];
+           }
+       }
+   }
+
+
+   // -------------------- PROFILE DATA --------------------
+
+
+   static class Profile {
+       String role;       // teacher, student, parent
+       String fullName;   // person name
+       String username;   // jsmith.teacher, abrown.student, mlee.parent
+       String linkedName; // teacher: school name; student: "None"; parent: student name
+
+
+       public Profile(String role, String fullName, String username, String linkedName) {
+           this.role = role;
+           this.fullName = fullName;
+           this.username = username;
+           this.linkedName = linkedName;
+       }
+   }
+
+
+   static class ProfileHandler {
+       static final String FILE = Settings.dataFile("profiles.csv");
+
+
+       static List<Profile> readFile() {
+           List<Profile> list = new ArrayList<>();
+           File f = new File(FILE);
+           if (!f.exists()) return list;
+
+
+           try (Reader in = new FileReader(FILE)) {
+               CsvReader csv = new CsvReader(in);
+               String[] p = new String[4];
+               while (csv.nextRow()) {
+                   if (csv.readFields(p) < 4) continue;
+                   list.add(new Profile(p[0], p[1], p[2], p[3]));
+               }
+               Metrics.read(f.length(), list.size());
+           } catch (Exception e) {
+               // As with the roster, a partial read must not be written back over the file.
+               throw new IllegalStateException("Could not read " + FILE + " (" + e.getMessage()
+                       + "); it has been left untouched.", e);
+           }
+           return list;
+       }
+
+
+       static void writeFile(List<Profile> list) {
+           try {
+               AtomicFile.write(FILE, out -> {
+                   for (Profile p : list) {
+                       out.write(row(p));
+                   }
+               });
+           } catch (Exception e) {
+               e.printStackTrace();
+           }
+       }
+
+
+       // Size, modification time and file identity: an append changes the size, and a rewrite
+       // renames a new file into place.
+       static long readVersion() {
+           try {
+               java.nio.file.attribute.BasicFileAttributes a =
+                       Files.readAttributes(Paths.get(FILE), java.nio.file.attribute.BasicFileAttributes.class);
+               return (a.lastModifiedTime().to(TimeUnit.NANOSECONDS) * 31 + a.size()) * 31 + Objects.hashCode(a.fileKey());
+           } catch (NoSuchFileException e) {
+               return 0;
+           } catch (IOException e) {
+               throw new UncheckedIOException(e);
+           }
+       }
+
+
+       static void appendToFile(List<Profile> list) {
+           long before = Metrics.ENABLED ? new File(FILE).length() : 0;
+           try (Writer out = new BufferedWriter(new FileWriter(FILE, true))) {
+               for (Profile p : list) {
+                   out.write(row(p));
+               }
+           } catch (Exception e) {
+               e.printStackTrace();
+           }
+           if (Metrics.ENABLED) Metrics.wrote(new File(FILE).length() - before);
+       }
+
+
+       private static String row(Profile p) {
+           return CsvReader.escape(p.role) + "," + CsvReader.escape(p.fullName) + ","
+                   + CsvReader.escape(p.username) + "," + CsvReader.escape(p.linkedName) + "\n";
+       }
+
+
+       public static List<Profile> loadAll() {
+           return ProfileStore.get().all();
+       }
+
+
+       public static void saveAll(List<Profile> list) {
+           ProfileStore.get().replaceAll(list);
+       }
+
+
+       public static void addProfile(Profile p) {
+           ProfileStore.get().add(p);
+       }
+
+
+       public static void addProfiles(List<Profile> list) {
+           ProfileStore.get().addAll(list);
+       }
+
+
+       public static Profile findByUsernameAndRole(String username, String role) {
+           long start = Metrics.start();
+           ProfileStore.get().sync();
+           Profile p = ProfileStore.get().find(username, role);
+           Metrics.LOGIN.stop(start);
+           return p;
+       }
+
+
+       public static Profile findParentForStudent(String username, String studentName) {
+           long start = Metrics.start();
+           ProfileStore.get().sync();
+           Profile p = ProfileStore.get().findParentLink(username, studentName);
+           Metrics.PARENT_LINK.stop(start);
+           return p;
+       }
+
+
+       public static Set<String> linkedStudents(String parentUsername) {
+           return ProfileStore.get().linkedStudents(parentUsername);
+       }
+
+
+       public static String generateUsername(String fullName, String role) {
+           String[] parts = fullName.trim().split("\\s+");
+           if (parts.length == 0) return "";
+           String first = parts[0].toLowerCase();
+           String last = parts[parts.length - 1].toLowerCase();
+           String base = (first.substring(0, 1) + last);
+           String suffix = "";
+           if (role.equalsIgnoreCase("teacher")) suffix = ".teacher";
+           else if (role.equalsIgnoreCase("student")) suffix = ".student";
+           else if (role.equalsIgnoreCase("parent")) suffix = ".parent";
+           return ProfileStore.get().usernames.allocate(base, suffix, role);
+       }
+   }
+
+
+   // Hands out jsmith.teacher, jsmith2.teacher, jsmith3.teacher, ... from one atomic counter per
+   // base name, so a fresh username costs O(1) and concurrent callers never get the same one.
+   static class UsernameAllocator {
+       private final ConcurrentHashMap<String, AtomicInteger> counters = new ConcurrentHashMap<>();
+
+
+       // Records an existing username so the counter for its base starts past it.
+       public void seen(String username) {
+           String u = username.trim().toLowerCase(Locale.ROOT);
+           int dot = u.lastIndexOf('.');
+           String name = dot < 0 ? u : u.substring(0, dot);
+           String suffix = dot < 0 ? "" : u.substring(dot);
+           int digits = name.length();
+           while (digits > 0 && Character.isDigit(name.charAt(digits - 1))) digits--;
+           int n = 1;
+           if (digits < name.length() && digits > 0) {
+               try {
+                   n = Integer.parseInt(name.substring(digits));
+                   name = name.substring(0, digits);
+               } catch (NumberFormatException ignored) {
+               }
+           }
+           counter(name + suffix).accumulateAndGet(n, Math::max);
+       }
+
+
+       // A base that itself ends in digits can still clash with an older numbered name,
+       // so each candidate is checked against the login index before it is returned.
+       public String allocate(String base, String suffix, String role) {
+           AtomicInteger counter = counter(base + suffix);
+           while (true) {
+               int n = counter.incrementAndGet();
+               String username = n == 1 ? base + suffix : base + n + suffix;
+               if (ProfileStore.get().find(username, role) == null) return username;
+           }
+       }
+
+
+       // A fresh username in place of one another process has taken since it was allocated.
+       public String reallocate(String username, String role) {
+           String u = username.trim().toLowerCase(Locale.ROOT);
+           int dot = u.lastIndexOf('.');
+           String name = dot < 0 ? u : u.substring(0, dot);
+           int digits = name.length();
+           while (digits > 1 && Character.isDigit(name.charAt(digits - 1))) digits--;
+           return allocate(name.substring(0, digits), dot < 0 ? "" : u.substring(dot), role);
+       }
+
+
+       private AtomicInteger counter(String key) {
+           return counters.computeIfAbsent(key, k -> new AtomicInteger());
+       }
+   }
+
+
+   // -------------------- PROFILE STORE --------------------
+
+
+   // Profiles stay resident like the roster; a new profile is one appended line, not a rewrite.
+   // Logins are answered from two indexes kept in step with every add: (role, username) -> profile,
+   // and parent username -> (student name -> the parent profile linking them).
+   static class ProfileStore {
+       private static ProfileStore instance;
+
+
+       private final List<Profile> profiles = new ArrayList<>();
+       private final Map<String, Profile> byLogin = new HashMap<>();
+       private final Map<String, Map<String, Profile>> parentLinks = new HashMap<>();
+       final UsernameAllocator usernames = new UsernameAllocator();
+       private long version; // Storage.readProfilesVersion() of the profiles this copy holds
+
+
+       private ProfileStore() {
+           DataLock.run(this::readFromDisk);
+       }
+
+
+       // Caller holds the DataLock. The allocator keeps its counters: they only ever move up.
+       private void readFromDisk() {
+           profiles.clear();
+           byLogin.clear();
+           parentLinks.clear();
+           index(Storage.get().readProfiles());
+           version = Storage.get().readProfilesVersion();
+       }
+
+
+       // In the write-through modes other processes add profiles to the same storage; a changed
+       // version means they are read again. Logins call this, and every write does it under the
+       // DataLock first, so usernames are checked against everyone's profiles.
+       public synchronized void sync() {
+           if (!Settings.persistence().writesThrough() || Storage.get().readProfilesVersion() == version) return;
+           DataLock.run(this::catchUp);
+       }
+
+
+       private void catchUp() {
+           if (Storage.get().readProfilesVersion() != version) readFromDisk();
+       }
+
+
+       private void shared(Runnable op) {
+           if (!Settings.persistence().writesThrough()) {
+               op.run();
+               return;
+           }
+           DataLock.run(() -> {
+               catchUp();
+               op.run();
+               version = Storage.get().readProfilesVersion();
+           });
+       }
+
+
+       static String loginKey(String username, String role) {
+           return role.trim().toLowerCase(Locale.ROOT) + ":" + username.trim().toLowerCase(Locale.ROOT);
+       }
+
+
+       // The first profile wins on a clash, as the old linear scan did.
+       private void index(List<Profile> list) {
+           for (Profile p : list) {
+               profiles.add(p);
+               byLogin.putIfAbsent(loginKey(p.username, p.role), p);
+               usernames.seen(p.username);
+               if (p.role.equalsIgnoreCase("parent")) {
+                   parentLinks.computeIfAbsent(p.username.trim().toLowerCase(Locale.ROOT), k -> new LinkedHashMap<>())
+                           .putIfAbsent(StudentStore.key(p.linkedName), p);
+               }
+           }
+       }
+
+
+       public static synchronized ProfileStore get() {
+           if (instance == null) instance = new ProfileStore();
+           return instance;
+       }
+
+
+       public static synchronized ProfileStore reload() {
+           instance = new ProfileStore();
+           return instance;
+       }
+
+
+       public synchronized List<Profile> all() {
+           return new ArrayList<>(profiles);
+       }
+
+
+       public synchronized int size() {
+           return profiles.size();
+       }
+
+
+       public synchronized void replaceAll(List<Profile> list) {
+           shared(() -> {
+               profiles.clear();
+               byLogin.clear();
+               parentLinks.clear();
+               index(list);
+               if (Settings.persistence().writesThrough()) Storage.get().writeProfiles(profiles);
+           });
+       }
+
+
+       public synchronized void add(Profile p) {
+           addAll(Collections.singletonList(p));
+       }
+
+
+       // A username another process took after it was generated here is allocated again, so read
+       // p.username after this returns.
+       public synchronized void addAll(List<Profile> list) {
+           shared(() -> {
+               for (Profile p : list) {
+                   if (find(p.username, p.role) != null) p.username = usernames.reallocate(p.username, p.role);
+               }
+               index(list);
+               if (Settings.persistence().writesThrough()) Storage.get().appendProfiles(list);
+           });
+       }
+
+
+       public synchronized Profile find(String username, String role) {
+           return byLogin.get(loginKey(username, role));
+       }
+
+
+       public synchronized Profile findParentLink(String parentUsername, String studentName) {
+           Map<String, Profile> links = parentLinks.get(parentUsername.trim().toLowerCase(Locale.ROOT));
+           return links == null ? null : links.get(StudentStore.key(studentName));
+       }
+
+
+       public synchronized Set<String> linkedStudents(String parentUsername) {
+           Map<String, Profile> links = parentLinks.get(parentUsername.trim().toLowerCase(Locale.ROOT));
+           if (links == null) return Collections.emptySet();
+           Set<String> names = new LinkedHashSet<>();
+           for (Profile p : links.values()) {
+               names.add(p.linkedName);
+           }
+           return names;
+       }
+
+
+       public synchronized void flush() {
+           DataLock.run(() -> {
+               Storage.get().writeProfiles(profiles);
+               version = Storage.get().readProfilesVersion();
+           });
+       }
+   }
+
+
+   // -------------------- BULK IMPORT --------------------
+
+
+   // Streams an external CSV, validates and de-duplicates each row, and commits all good rows
+   // in a single store call. Students: "first,last[,points]". Profiles: "role,full name[,school
+   // or student name]". A first line starting with "first" or "role" is treated as a header.
+   static class RosterImport {
+
+
+       static class Result {
+           int rows;
+           int added;
+           List<String> errors = new ArrayList<>();
+       }
+
+
+       interface Importer {
+           Result run(File file, IntConsumer progress) throws IOException;
+       }
+
+
+       // Every imported student joins the given school/class partition.
+       public static Result importStudents(File file, IntConsumer progress, String school, String className)
+               throws IOException {
+           Result result = new Result();
+           List<Student> batch = new ArrayList<>();
+           Set<String> seen = new HashSet<>();
+
+
+           readRows(file, progress, "first", (lineNo, p) -> {
+               result.rows++;
+               String fn = p.length > 0 ? p[0].trim() : "";
+               String ln = p.length > 1 ? p[1].trim() : "";
+               if (fn.isEmpty() || ln.isEmpty()) {
+                   result.errors.add("Line " + lineNo + ": first and last name are required");
+                   return;
+               }
+               int pts = 0;
+               if (p.length > 2 && !p[2].trim().isEmpty()) {
+                   try {
+                       pts = Integer.parseInt(p[2].trim());
+                   } catch (NumberFormatException e) {
+                       result.errors.add("Line " + lineNo + ": points \"" + p[2].trim() + "\" is not a number");
+                       return;
+                   }
+                   if (pts < 0) {
+                       result.errors.add("Line " + lineNo + ": points cannot be negative");
+                       return;
+                   }
+               }
+               String key = StudentStore.key(fn, ln);
+               if (!seen.add(key) || CSVHandler.exists(key)) {
+                   result.errors.add("Line " + lineNo + ": " + fn + " " + ln + " already exists");
+                   return;
+               }
+               batch.add(new Student(fn, ln, pts, school, className));
+           });
+
+
+           result.added = CSVHandler.addStudents(batch).size();
+           return result;
+       }
+
+
+       public static Result importProfiles(File file, IntConsumer progress) throws IOException {
+           Result result = new Result();
+           List<Profile> batch = new ArrayList<>();
+           Set<String> seen = new HashSet<>();
+           for (Profile p : ProfileHandler.loadAll()) {
+               seen.add(profileKey(p.role, p.fullName, p.linkedName));
+           }
+
+
+           readRows(file, progress, "role", (lineNo, p) -> {
+               result.rows++;
+               String role = p.length > 0 ? p[0].trim().toLowerCase(Locale.ROOT) : "";
+               String fullName = p.length > 1 ? p[1].trim() : "";
+               String extra = p.length > 2 ? p[2].trim() : "";
+               if (!role.equals("teacher") && !role.equals("student") && !role.equals("parent")) {
+                   result.errors.add("Line " + lineNo + ": role must be teacher, student or parent");
+                   return;
+               }
+               if (fullName.isEmpty()) {
+                   result.errors.add("Line " + lineNo + ": full name is required");
+                   return;
+               }
+               if (role.equals("teacher") && extra.isEmpty()) {
+                   result.errors.add("Line " + lineNo + ": teacher needs a school name");
+                   return;
+               }
+               if (role.equals("parent") && extra.isEmpty()) {
+                   result.errors.add("Line " + lineNo + ": parent needs a student full name");
+                   return;
+               }
+               String linked = role.equals("student") ? "None" : extra;
+               if (!seen.add(profileKey(role, fullName, linked))) {
+                   result.errors.add("Line " + lineNo + ": duplicate " + role + " profile for " + fullName);
+                   return;
+               }
+               batch.add(new Profile(role, fullName, ProfileHandler.generateUsername(fullName, role), linked));
+           });
+
+
+           ProfileHandler.addProfiles(batch);
+           result.added = batch.size();
+           return result;
+       }
+
+
+       private static String profileKey(String role, String fullName, String linkedName) {
+           return (role + "," + fullName.trim() + "," + linkedName.trim()).toLowerCase(Locale.ROOT);
+       }
+
+
+       interface RowHandler {
+           void row(int lineNo, String[] fields);
+       }
+
+
+       // Progress is reported in percent of the file consumed.
+       private static void readRows(File file, IntConsumer progress, String headerField,
+                                    RowHandler handler) throws IOException {
+           long total = Math.max(1, file.length());
+           int lastPercent = -1;
+           String[] p = new String[3];
+
+
+           try (Reader in = new FileReader(file)) {
+               CsvReader csv = new CsvReader(in);
+               while (csv.nextRow()) {
+                   int percent = (int) Math.min(100, csv.charsRead() * 100 / total);
+                   if (percent != lastPercent) {
+                       progress.accept(percent);
+                       lastPercent = percent;
+                   }
+                   int n = csv.readFields(p);
+                   if (csv.lineNumber() == 1 && p[0].trim().equalsIgnoreCase(headerField)) continue;
+                   handler.row(csv.lineNumber(), Arrays.copyOf(p, n));
+               }
+           }
+       }
+
+
+       // Asks for a file, imports it on a background thread behind a progress monitor, then
+       // calls onDone once on the EDT and shows the per-row error report.
+       public static void chooseAndRun(Component parent, String what, Importer importer, Runnable onDone) {
+           JFileChooser chooser = new JFileChooser();
+           if (chooser.showOpenDialog(parent) != JFileChooser.APPROVE_OPTION) return;
+           File file = chooser.getSelectedFile();
+
+
+           ProgressMonitor monitor = new ProgressMonitor(parent, "Importing " + what + "...", file.getName(), 0, 100);
+           SwingWorker<Result, Void> worker = new SwingWorker<>() {
+               @Override
+               protected Result doInBackground() throws Exception {
+                   return importer.run(file, this::setProgress);
+               }
+
+
+               @Override
+               protected void done() {
+                   monitor.close();
+                   try {
+                       Result r = get();
+                       onDone.run();
+                       showReport(parent, what, r);
+                   } catch (Exception e) {
+                       e.printStackTrace();
+                       JOptionPane.showMessageDialog(parent, "Import failed: " + e.getMessage());
+                   }
+               }
+           };
+           worker.addPropertyChangeListener(e -> {
+               if ("progress".equals(e.getPropertyName())) monitor.setProgress((Integer) e.getNewValue());
+           });
+           worker.execute();
+       }
+
+
+       private static void showReport(Component parent, String what, Result r) {
+           String summary = "Imported " + r.added + " " + what + " from " + r.rows + " rows.";
+           if (r.errors.isEmpty()) {
+               JOptionPane.showMessageDialog(parent, summary);
+               return;
+           }
+           JTextArea report = new JTextArea(String.join("\n", r.errors), 12, 40);
+           report.setEditable(false);
+           JPanel panel = new JPanel(new BorderLayout());
+           panel.add(new JLabel(summary + " " + r.errors.size() + " rows skipped:"), BorderLayout.NORTH);
+           panel.add(new JScrollPane(report), BorderLayout.CENTER);
+           JOptionPane.showMessageDialog(parent, panel, "Import Report", JOptionPane.WARNING_MESSAGE);
+       }
+   }
+
+
+   // -------------------- CSV PARSING --------------------
+
+
+   // Single-pass RFC 4180 tokenizer over a reusable char buffer. Numeric columns are parsed
+   // straight from the buffer with no intermediate String, and quoted fields may contain
+   // commas, doubled quotes and line breaks. Blank lines are skipped.
+   static class CsvReader {
+       private final Reader in;
+       private final char[] buf = new char[1 << 16];
+       private final StringBuilder field = new StringBuilder(32);
+       private int pos, limit;
+       private long charsBefore;         // chars consumed by earlier buffer fills
+       private boolean rowEnded = true;  // no fields left in the current row
+       private int line;                 // physical line the current row starts on
+       private int nextLine = 1;
+
+
+       public CsvReader(Reader in) {
+           this.in = in;
+       }
+
+
+       public static String escape(String value) {
+           boolean quote = false;
+           for (int i = 0; i < value.length() && !quote; i++) {
+               char c = value.charAt(i);
+               quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+           }
+           if (!quote) return value;
+           return "\"" + value.replace("\"", "\"\"") + "\"";
+       }
+
+
+       // Moves to the start of the next non-blank row, skipping whatever is left of this one.
+       public boolean nextRow() throws IOException {
+           while (!rowEnded) skipField();
+           while (true) {
+               int c = peek();
+               if (c == -1) return false;
+               if (c == '\n') {
+                   pos++;
+                   nextLine++;
+               } else if (c == '\r') {
+                   pos++;
+               } else {
+                   rowEnded = false;
+                   line = nextLine;
+                   return true;
+               }
+           }
+       }
+
+
+       public boolean hasField() {
+           return !rowEnded;
+       }
+
+
+       public int lineNumber() {
+           return line;
+       }
+
+
+       public long charsRead() {
+           return charsBefore + pos;
+       }
+
+
+       // Returns null once the row has no fields left.
+       public String nextField() throws IOException {
+           if (rowEnded) return null;
+           field.setLength(0);
+           if (peek() == '"') {
+               readQuoted();
+               endField();
+               return field.toString();
+           }
+
+
+           // Common case: the whole field is already in the buffer and is copied out once.
+           int start = pos;
+           while (pos < limit) {
+               char c = buf[pos];
+               if (c == ',' || c == '\n' || c == '\r') {
+                   String value = new String(buf, start, pos - start);
+                   endField();
+                   return value;
+               }
+               pos++;
+           }
+           field.append(buf, start, pos - start);
+           int c;
+           while ((c = peek()) != -1 && c != ',' && c != '\n' && c != '\r') {
+               field.append((char) c);
+               pos++;
+           }
+           endField();
+           return field.toString();
+       }
+
+
+       // Fills dest with up to dest.length fields of this row and returns how many were read.
+       public int readFields(String[] dest) throws IOException {
+           int n = 0;
+           while (n < dest.length && hasField()) dest[n++] = nextField();
+           return n;
+       }
+
+
+       public int nextInt() throws IOException {
+           long v = nextLong();
+           if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) throw new NumberFormatException("out of int range: " + v);
+           return (int) v;
+       }
+
+
+       public long nextLong() throws IOException {
+           if (rowEnded) throw new NumberFormatException("missing field");
+           boolean quoted = peek() == '"';
+           if (quoted) pos++;
+           boolean negative = false;
+           int c = peek();
+           if (c == '-' || c == '+') {
+               negative = c == '-';
+               pos++;
+           }
+           long v = 0;
+           int digits = 0;
+           while ((c = peek()) >= '0' && c <= '9') {
+               if (v > (Long.MAX_VALUE - (c - '0')) / 10) {
+                   skipField();
+                   throw new NumberFormatException("too large");
+               }
+               v = v * 10 + (c - '0');
+               digits++;
+               pos++;
+           }
+           if (quoted && peek() == '"') pos++;
+           c = peek();
+           boolean terminated = c == -1 || c == ',' || c == '\n' || c == '\r';
+           if (digits == 0 || !terminated) {
+               skipField();
+               throw new NumberFormatException("not a number");
+           }
+           endField();
+           return negative ? -v : v;
+       }
+
+
+       private void readQuoted() throws IOException {
+           pos++;
+           int c;
+           while ((c = peek()) != -1) {
+               pos++;
+               if (c == '"') {
+                   if (peek() != '"') break;
+                   pos++;
+               }
+               if (c == '\n') nextLine++;
+               field.append((char) c);
+           }
+           // Lenient about text between the closing quote and the delimiter.
+           while ((c = peek()) != -1 && c != ',' && c != '\n' && c != '\r') {
+               field.append((char) c);
+               pos++;
+           }
+       }
+
+
+       private void skipField() throws IOException {
+           if (peek() == '"') {
+               readQuoted();
+           } else {
+               int c;
+               while ((c = peek()) != -1 && c != ',' && c != '\n' && c != '\r') pos++;
+           }
+           endField();
+       }
+
+
+       // Consumes the delimiter after a field; a line break (left for nextRow) or EOF ends the row.
+       private void endField() throws IOException {
+           if (peek() == ',') {
+               pos++;
+           } else {
+               rowEnded = true;
+           }
+       }
+
+
+       private int peek() throws IOException {
+           if (pos == limit) {
+               charsBefore += limit;
+               pos = 0;
+               limit = Math.max(0, in.read(buf, 0, buf.length));
+               if (limit == 0) return -1;
+           }
+           return buf[pos];
+       }
+   }
+
+
+   // -------------------- COMMAND LINE --------------------
+
+
+   // Headless entry point: main hands every "--" option here, and nothing on this path touches
+   // AWT, so nightly jobs can run on a server with no display. --cli commands drive the same
+   // CSVHandler entry points as the screens, under the same DataLock.
+   // Usage: java classroomRewardsTracker --cli <command> [args...]
+   //        java classroomRewardsTracker --cli < commands.csv   (one command per row, as CSV fields)
+   //   award <name> <points> [category]     award-file <file|-> [category]   rows: name,points[,category]
+   //   add <first> <last> [school class]   delete <name>                    prune-file <file|->   rows: name
+   //   list [school class]                 leaderboard [n] [school [class]] raffle [school class]
+   // Awards, and likewise adds, are queued and applied as one batch before the next other command
+   // and at the end, so a 100k-row award file is one lock, one ledger write and at most one
+   // snapshot write.
+   static class Cli {
+       private final Map<String, Command> commands = new LinkedHashMap<>();
+       private final List<Award> pending = new ArrayList<>();
+       private final List<Student> pendingStudents = new ArrayList<>();
+       private boolean changed;
+
+
+       interface Command {
+           void run(List<String> args) throws Exception;
+       }
+
+
+       public static void main(String[] args) {
+           System.setProperty("java.awt.headless", "true");
+           DataLock.join();
+           String[] rest = Arrays.copyOfRange(args, 1, args.length);
+           if (args[0].equals("--convert") && rest.length == 2) {
+               CSVHandler.convert(rest[0], rest[1]);
+           } else if (args[0].equals("--migrate")) {
+               JdbcStorage.migrate(rest.length > 0 ? rest[0] : Settings.get("rewards.storage", ""));
+           } else if (args[0].equals("--stress")) {
+               StressTest.run(rest);
+           } else if (args[0].equals("--stress-worker")) {
+               StressTest.worker(rest);
+           } else if (args[0].equals("--cli")) {
+               Cli cli = new Cli();
+               boolean ok = rest.length > 0 ? cli.execute(Arrays.asList(rest)) : cli.executeAll(System.in);
+               ok &= cli.finish();
+               if (!ok) System.exit(1);
+           } else {
+               System.out.println("Options: --cli [command], --convert <from> <to>, --migrate <jdbc-url>, --stress");
+               System.exit(2);
+           }
+       }
+
+
+       Cli() {
+           commands.put("award", this::award);
+           commands.put("award-file", this::awardFile);
+           commands.put("add", this::add);
+           commands.put("delete", this::delete);
+           commands.put("prune-file", this::pruneFile);
+           commands.put("list", this::list);
+           commands.put("leaderboard", this::leaderboard);
+           commands.put("raffle", this::raffle);
+       }
+
+
+       // One row per command; blank rows and rows starting with # are skipped. A failing row is
+       // reported and the rest still run.
+       boolean executeAll(InputStream in) {
+           boolean ok = true;
+           try {
+               CsvReader csv = new CsvReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+               while (csv.nextRow()) {
+                   List<String> fields = new ArrayList<>();
+                   while (csv.hasField()) fields.add(csv.nextField().trim());
+                   if (fields.get(0).startsWith("#")) continue;
+                   if (!execute(fields)) {
+                       System.err.println("  at line " + csv.lineNumber());
+                       ok = false;
+                   }
+               }
+           } catch (IOException e) {
+               System.err.println("Could not read commands: " + e.getMessage());
+               return false;
+           }
+           return ok;
+       }
+
+
+       boolean execute(List<String> fields) {
+           String name = fields.get(0);
+           Command command = commands.get(name);
+           if (command == null) {
+               System.err.println("Unknown command " + name + "; commands: " + String.join(", ", commands.keySet()));
+               return false;
+           }
+           try {
+               if (!name.equals("award") && !name.equals("award-file")) applyPending();
+               if (!name.equals("add")) applyPendingStudents();
+               command.run(fields.subList(1, fields.size()));
+               return true;
+           } catch (IllegalArgumentException e) {
+               System.err.println(name + ": " + e.getMessage());
+           } catch (Exception e) {
+               System.err.println(name + ": " + e);
+           }
+           return false;
+       }
+
+
+       // Applies queued awards and, in snapshot-on-exit mode, writes the one snapshot.
+       boolean finish() {
+           boolean ok = true;
+           try {
+               applyPending();
+               applyPendingStudents();
+           } catch (Exception e) {
+               System.err.println(e);
+               ok = false;
+           }
+           if (changed && !Settings.persistence().writesThrough()) StudentStore.get().flush();
+           if (Metrics.ENABLED) System.err.print(Metrics.report());
+           return ok;
+       }
+
+
+       private void applyPending() {
+           if (pending.isEmpty()) return;
+           List<Award> applied = CSVHandler.addPoints(pending);
+           System.out.println("Applied " + applied.size() + " of " + pending.size() + " awards"
+                   + (applied.size() < pending.size() ? " (the rest name unknown students)" : ""));
+           pending.clear();
+           changed = true;
+       }
+
+
+       private void applyPendingStudents() {
+           if (pendingStudents.isEmpty()) return;
+           List<Student> added = CSVHandler.addStudents(pendingStudents);
+           System.out.println("Added " + added.size() + " of " + pendingStudents.size() + " students"
+                   + (added.size() < pendingStudents.size() ? " (the rest already exist)" : ""));
+           pendingStudents.clear();
+           changed |= !added.isEmpty();
+       }
+
+
+       private void award(List<String> args) {
+           need(args, 2, "award <name> <points> [category]");
+           pending.add(new Award(0, 0, args.get(0), points(args.get(1)), Award.category(args.size() > 2 ? args.get(2) : null)));
+       }
+
+
+       private void awardFile(List<String> args) throws IOException {
+           need(args, 1, "award-file <file|-> [category]");
+           String category = Award.category(args.size() > 1 ? args.get(1) : null);
+           int queued = 0;
+           int skipped = 0;
+           try (Reader in = open(args.get(0))) {
+               CsvReader csv = new CsvReader(in);
+               while (csv.nextRow()) {
+                   String name = csv.nextField().trim();
+                   try {
+                       int points = csv.nextInt();
+                       String rowCategory = csv.hasField() ? csv.nextField().trim() : "";
+                       pending.add(new Award(0, 0, name, points, rowCategory.isEmpty() ? category : Award.category(rowCategory)));
+                       queued++;
+                   } catch (IllegalArgumentException e) {
+                       skipped++;
+                   }
+               }
+           }
+           System.out.println("Queued " + queued + " awards from " + args.get(0)
+                   + (skipped > 0 ? " (" + skipped + " rows without a points value or with an unknown category skipped)" : ""));
+       }
+
+
+       private void add(List<String> args) {
+           need(args, 2, "add <first> <last> [school class]");
+           pendingStudents.add(args.size() >= 4
+                   ? new Student(args.get(0), args.get(1), 0, args.get(2), args.get(3))
+                   : new Student(args.get(0), args.get(1), 0));
+       }
+
+
+       private void delete(List<String> args) {
+           need(args, 1, "delete <name>");
+           int deleted = CSVHandler.deleteStudents(Collections.singletonList(args.get(0)));
+           changed |= deleted > 0;
+           System.out.println(deleted > 0 ? "Deleted " + args.get(0) : args.get(0) + " not found");
+       }
+
+
+       private void pruneFile(List<String> args) throws IOException {
+           need(args, 1, "prune-file <file|->");
+           List<String> names = new ArrayList<>();
+           try (Reader in = open(args.get(0))) {
+               CsvReader csv = new CsvReader(in);
+               while (csv.nextRow()) names.add(csv.nextField().trim());
+           }
+           int deleted = CSVHandler.deleteStudents(names);
+           changed |= deleted > 0;
+           System.out.println("Deleted " + deleted + " of " + names.size() + " students");
+       }
+
+
+       // Rows as in the roster file: first,last,points,school,class.
+       private void list(List<String> args) {
+           List<Student> students = args.size() >= 2 ? CSVHandler.loadAll(args.get(0), args.get(1)) : CSVHandler.loadAll();
+           printRows(students, false);
+       }
+
+
+       // rank,first,last,points,school,class, best first; everyone unless n is given.
+       private void leaderboard(List<String> args) {
+           int n = Math.min(args.isEmpty() ? Integer.MAX_VALUE : count(args.get(0)), StudentStore.get().size());
+           List<Student> top;
+           if (args.size() >= 3) {
+               top = StudentStore.get().top(args.get(1), args.get(2), n);
+           } else if (args.size() == 2) {
+               top = StudentStore.get().schoolTop(args.get(1), n);
+           } else {
+               top = StudentStore.get().top(n);
+           }
+           printRows(top, true);
+       }
+
+
+       private void raffle(List<String> args) {
+           Student winner = args.size() >= 2 ? CSVHandler.drawRaffleWinner(args.get(0), args.get(1)) : CSVHandler.drawRaffleWinner();
+           System.out.println(winner == null ? "Nobody is eligible" : winner.getFullName());
+       }
+
+
+       private static void printRows(List<Student> students, boolean ranked) {
+           PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16));
+           int rank = 0;
+           for (Student s : students) {
+               if (ranked) out.print(++rank + ",");
+               out.print(CsvReader.escape(s.firstName) + "," + CsvReader.escape(s.lastName) + "," + s.points + ","
+                       + CsvReader.escape(s.school) + "," + CsvReader.escape(s.className) + "\n");
+           }
+           out.flush();
+       }
+
+
+       private static Reader open(String file) throws IOException {
+           InputStream in = file.equals("-") ? System.in : new FileInputStream(file);
+           return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+       }
+
+
+       private static void need(List<String> args, int n, String usage) {
+           if (args.size() < n) throw new IllegalArgumentException("usage: " + usage);
+       }
+
+
+       private static int points(String value) {
+           try {
+               return Integer.parseInt(value.trim());
+           } catch (NumberFormatException e) {
+               throw new IllegalArgumentException("points must be a whole number, not \"" + value + "\"");
+           }
+       }
+
+
+       private static int count(String value) {
+           try {
+               int n = Integer.parseInt(value.trim());
+               if (n >= 0) return n;
+           } catch (NumberFormatException ignored) {
+           }
+           throw new IllegalArgumentException("n must be a whole number of 0 or more, not \"" + value + "\"");
+       }
+   }
+
+
+   // -------------------- BENCHMARKS --------------------
+
+
+   // Workloads for the JMH benchmarks in benchmarks/ (mvn -Pjmh package, then
+   // java -jar target/benchmarks.jar; add -prof gc for bytes allocated per operation). JMH does
+   // not generate code for classes in the default package, so the benchmark classes look these
+   // up by name. Each method sets up n rows and returns its cases by name. Loading this class
+   // points the data directory at a private temp directory in durable mode, so real files are
+   // never touched.
+   static class Benchmarks {
+       static final File DIR = dataDir();
+       private static final List<AutoCloseable> opened = new ArrayList<>();
+
+
+       private static File dataDir() {
+           try {
+               File dir = Files.createTempDirectory("rewards-bench").toFile();
+               System.setProperty("rewards.dataDir", dir.getPath());
+               System.setProperty("rewards.persistence", "durable");
+               System.setProperty("rewards.storage", "file");
+               return dir;
+           } catch (IOException e) {
+               throw new UncheckedIOException(e);
+           }
+       }
+
+
+       // The CSVHandler and ProfileHandler entry points the screens call, against n students
+       // and n profiles.
+       public static Map<String, Callable<Long>> operations(int n) throws IOException {
+           writeSyntheticData(n);
+           StudentStore.reload();
+           ProfileStore.reload();
+
+
+           String[] names = new String[n];
+           String[] usernames = new String[n];
+           for (int i = 0; i < n; i++) {
+               names[i] = "First" + i + " Last" + (i % 997);
+               usernames[i] = "f" + i + "last" + (i % 997) + ".student";
+           }
+           Random r = new Random(42);
+
+
+           Map<String, Callable<Long>> cases = new LinkedHashMap<>();
+           cases.put("store.coldLoad", () -> (long) StudentStore.reload().size());
+           cases.put("CSVHandler.loadAll", () -> (long) CSVHandler.loadAll().size());
+           cases.put("CSVHandler.findStudent", () -> (long) CSVHandler.findStudent(names[r.nextInt(n)]).points);
+           cases.put("CSVHandler.addPoints", () -> {
+               CSVHandler.addPoints(names[r.nextInt(n)], 1, "Participation");
+               return 1L;
+           });
+           cases.put("CSVHandler.addPoints(batch30)", () -> {
+               List<Award> batch = new ArrayList<>(30);
+               for (int i = 0; i < 30; i++) {
+                   batch.add(new Award(0, 0, names[r.nextInt(n)], 1, "Teamwork"));
+               }
+               return (long) CSVHandler.addPoints(batch).size();
+           });
+           cases.put("CSVHandler.top3", () -> (long) CSVHandler.top3().size());
+           cases.put("CSVHandler.raffleEligible", () -> (long) CSVHandler.raffleEligible().size());
+           cases.put("Profile.findByUsernameAndRole",
+                   () -> (long) ProfileHandler.findByUsernameAndRole(usernames[r.nextInt(n)], "student").fullName.length());
+           cases.put("Profile.generateUsername",
+                   () -> (long) ProfileHandler.generateUsername(names[r.nextInt(n)], "student").length());
+           return cases;
+       }
+
+
+       private static void writeSyntheticData(int n) throws IOException {
+           Random r = new Random(n);
+           AwardLedger.clear();
+           List<Student> roster = new ArrayList<>(n);
+           for (int i = 0; i < n; i++) {
+               roster.add(new Student("First" + i, "Last" + (i % 997), r.nextInt(200)));
+           }
+           CSVHandler.writeFile(roster, 0, 0); // in whichever format rewards.roster.file selects
+           try (Writer out = new BufferedWriter(new FileWriter(ProfileHandler.FILE), 1 << 16)) {
+               for (int i = 0; i < n; i++) {
+                   out.write("student,First" + i + " Last" + (i % 997) + ",f" + i + "last" + (i % 997) + ".student,None\n");
+               }
+           }
+       }
+
+
+       // FileStorage against JdbcStorage for the same n students: a cold read, the snapshot write
+       // after one award (a full file rewrite against a one-row diff), a batched insert of every
+       // row, and the indexed lookups. Uses H2 in the temp directory, or the URL in
+       // rewards.bench.jdbc.
+       public static Map<String, Callable<Long>> storage(int n) throws SQLException {
+           String url = Settings.get("rewards.bench.jdbc", "jdbc:h2:" + new File(DIR, "bench").getAbsolutePath());
+           JdbcStorage db = new JdbcStorage(url);
+           opened.add(db);
+
+
+           Random r = new Random(n);
+           List<Student> roster = new ArrayList<>(n);
+           String[] names = new String[n];
+           for (int i = 0; i < n; i++) {
+               roster.add(new Student("First" + i, "Last" + (i % 997), r.nextInt(200), "School" + (i % 10), "class" + (i % 40)));
+               names[i] = roster.get(i).getFullName();
+           }
+           FileStorage files = new FileStorage();
+           long[] version = {0};
+           files.writeRoster(roster, 0, ++version[0]);
+           db.deleteAll();
+           db.saveRoster(roster, 0, ++version[0]);
+
+
+           Map<String, Callable<Long>> cases = new LinkedHashMap<>();
+           cases.put("file.readRoster", () -> (long) files.readRoster().students.size());
+           cases.put("jdbc.readRoster", () -> (long) db.loadRoster().students.size());
+           cases.put("file.writeRoster(1 award)", () -> {
+               roster.get(r.nextInt(n)).points++;
+               files.writeRoster(roster, 0, ++version[0]);
+               return 1L;
+           });
+           cases.put("jdbc.writeRoster(1 award)", () -> {
+               roster.get(r.nextInt(n)).points++;
+               db.saveRoster(roster, 0, ++version[0]);
+               return 1L;
+           });
+           cases.put("jdbc.insertAll(batched)", () -> {
+               db.deleteAll();
+               db.saveRoster(roster, 0, ++version[0]);
+               return (long) n;
+           });
+           cases.put("jdbc.findStudent(indexed)", () -> (long) db.findStudent(names[r.nextInt(n)]).points);
+           cases.put("jdbc.top3(indexed)", () -> (long) db.top(3).size());
+           return cases;
+       }
+
+
+       // The tokenizer-based CSVHandler.parse against the previous readLine + split loader,
+       // and the mapped BinaryRoster of the same rows.
+       public static Map<String, Callable<Long>> rosterLoader(int rows) throws IOException {
+           File f = syntheticRoster(rows);
+           File bin = new File(DIR, "roster-" + rows + BinaryRoster.EXTENSION);
+           CSVHandler.writeFile(bin.getPath(), CSVHandler.readFile(f.getPath()).students, 0, 0);
+
+
+           Map<String, Callable<Long>> cases = new LinkedHashMap<>();
+           cases.put("csv.legacySplit", () -> (long) legacyLoad(f).size());
+           cases.put("csv.tokenizer", () -> {
+               try (Reader in = new FileReader(f)) {
+                   return (long) CSVHandler.parse(in).students.size();
+               }
+           });
+           cases.put("roster.binary", () -> (long) BinaryRoster.read(bin.getPath()).students.size());
+           return cases;
+       }
+
+
+       private static List<Student> legacyLoad(File f) throws IOException {
+           List<Student> list = new ArrayList<>();
+           try (BufferedReader br = new BufferedReader(new FileReader(f))) {
+               String line;
+               while ((line = br.readLine()) != null) {
+                   String[] p = line.split(",");
+                   if (p.length < 3) continue;
+                   list.add(new Student(p[0], p[1], Integer.parseInt(p[2])));
+               }
+           }
+           return list;
+       }
+
+
+       static File syntheticRoster(int rows) throws IOException {
+           File f = new File(DIR, "roster-" + rows + ".csv");
+           Random r = new Random(rows);
+           try (Writer out = new BufferedWriter(new FileWriter(f), 1 << 16)) {
+               for (int i = 0; i < rows; i++) {
+                   out.write("First" + i + ",Last" + (i % 997) + "," + r.nextInt(200) + "\n");
+               }
+           }
+           return f;
+       }
+
+
+       // Closes the databases the cases opened and deletes the temp directory with everything the
+       // cases wrote there. JMH forks a JVM per trial, so each trial gets a fresh directory.
+       public static void close() {
+           for (AutoCloseable c : opened) {
+               try {
+                   c.close();
+               } catch (Exception e) {
+                   e.printStackTrace();
+               }
+           }
+           opened.clear();
+           try (java.util.stream.Stream<Path> files = Files.walk(DIR.toPath())) {
+               files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+           } catch (IOException e) {
+               e.printStackTrace();
+           }
+       }
+   }
+
+
+   // -------------------- STRESS TEST --------------------
+
+
+   // Several processes, each with several threads, award points in one shared data directory;
+   // afterwards every award must be in the store.
+   // Usage: java -cp <classes> classroomRewardsTracker --stress [processes] [threads] [awards] [students]
+   // (defaults 4, 4, 500, 100; awards are per thread). The workers are started with this JVM's
+   // class path, so run it from compiled classes rather than the single-file source launcher.
+   static class StressTest {
+
+
+       public static void run(String[] args) {
+           int processes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+           int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+           int awards = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+           int students = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+
+           try {
+               File dir = Files.createTempDirectory("rewards-stress").toFile();
+               System.setProperty("rewards.dataDir", dir.getPath());
+               System.setProperty("rewards.persistence", "durable");
+               System.setProperty("rewards.storage", "file");
+
+
+               List<Student> roster = new ArrayList<>();
+               for (int i = 0; i < students; i++) {
+                   roster.add(new Student("First" + i, "Last" + i, 0));
+               }
+               StudentStore.get().addAll(roster);
+
+
+               String java = ProcessHandle.current().info().command().orElse("java");
+               long start = System.nanoTime();
+               List<Process> workers = new ArrayList<>();
+               for (int i = 0; i < processes; i++) {
+                   workers.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                           "-Drewards.dataDir=" + dir.getPath(), "-Drewards.persistence=durable", "-Drewards.storage=file",
+                           "-Drewards.roster.file=" + Settings.get("rewards.roster.file", "students.csv"),
+                           "classroomRewardsTracker", "--stress-worker",
+                           String.valueOf(threads), String.valueOf(awards), String.valueOf(students))
+                           .inheritIO().start());
+               }
+               for (Process p : workers) {
+                   if (p.waitFor() != 0) System.out.println("worker exited with " + p.exitValue());
+               }
+               double seconds = (System.nanoTime() - start) / 1e9;
+
+
+               long expected = (long) processes * threads * awards;
+               long total = 0;
+               for (Student s : StudentStore.reload().all()) {
+                   total += s.points;
+               }
+               System.out.printf("%d processes x %d threads x %d awards in %.1f s (%.0f awards/s)%n",
+                       processes, threads, awards, seconds, expected / seconds);
+               System.out.println("expected " + expected + " points, found " + total
+                       + (total == expected ? ": OK" : ": LOST UPDATES"));
+               if (total != expected) System.exit(1);
+           } catch (Exception e) {
+               e.printStackTrace();
+               System.exit(1);
+           }
+       }
+
+
+       // One +1 award per iteration to a random student, from each of the given threads.
+       public static void worker(String[] args) {
+           int threads = Integer.parseInt(args[0]);
+           int awards = Integer.parseInt(args[1]);
+           int students = Integer.parseInt(args[2]);
+
+
+           List<Thread> running = new ArrayList<>();
+           for (int t = 0; t < threads; t++) {
+               running.add(Thread.ofPlatform().start(() -> {
+                   Random r = new Random();
+                   for (int i = 0; i < awards; i++) {
+                       int n = r.nextInt(students);
+                       CSVHandler.addPoints("First" + n + " Last" + n, 1, "Participation");
+                   }
+               }));
+           }
+           try {
+               for (Thread t : running) t.join();
+           } catch (InterruptedException e) {
+               e.printStackTrace();
+           }
+       }
+   }
+
+
+   // -------------------- HTTP API --------------------
+
+
+   // Optional JSON API on 127.0.0.1 for scripts and the clicker integration, started when
+   // rewards.api.port is set. Handlers run on virtual threads against the same resident stores
+   // as the screens, so an award made here shows up on the next dashboard refresh.
+   //   GET  /api/student?name=Ada Lovelace
+   //   POST /api/award          {"name": "...", "points": 5, "category": "Teamwork"}, or an array of them
+   //   GET  /api/leaderboard    ?k=3, optionally &school=... and &class=...
+   //   GET  /api/raffle         optionally ?school=...&class=...
+   //   GET  /api/profile?username=...&role=...
+   static class ApiServer {
+       // Request bodies past this size are refused with 413 before any parsing.
+       static final int MAX_BODY = 1 << 20;
+       // Largest leaderboard a request may ask for.
+       static final int MAX_K = 10_000;
+       private static HttpServer server;
+
+
+       interface Handler {
+           String handle(Map<String, String> query, String body) throws Exception;
+       }
+
+
+       // Thrown by handlers to answer with an error status instead of 200.
+       static class ApiException extends Exception {
+           final int status;
+
+
+           ApiException(int status, String message) {
+               super(message);
+               this.status = status;
+           }
+       }
+
+
+       public static synchronized void start(int port) throws IOException {
+           if (server != null) return;
+           server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+           server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+           route("/api/student", "GET", ApiServer::student);
+           route("/api/award", "POST", ApiServer::award);
+           route("/api/leaderboard", "GET", ApiServer::leaderboard);
+           route("/api/raffle", "GET", ApiServer::raffle);
+           route("/api/profile", "GET", ApiServer::profile);
+           server.start();
+       }
+
+
+       public static synchronized void stop() {
+           if (server == null) return;
+           server.stop(0);
+           server = null;
+       }
+
+
+       private static void route(String path, String method, Handler handler) {
+           server.createContext(path, ex -> {
+               int status = 200;
+               String reply;
+               try {
+                   // Contexts match by prefix, so /api/studentfoo would otherwise reach /api/student.
+                   if (!ex.getRequestURI().getPath().equals(path)) {
+                       throw new ApiException(404, "not found");
+                   }
+                   if (!ex.getRequestMethod().equalsIgnoreCase(method)) {
+                       throw new ApiException(405, method + " only");
+                   }
+                   reply = handler.handle(query(ex.getRequestURI().getRawQuery()), body(ex));
+               } catch (ApiException e) {
+                   status = e.status;
+                   reply = error(e.getMessage());
+               } catch (IllegalArgumentException e) {
+                   status = 400;
+                   reply = error(e.getMessage());
+               } catch (Exception | Error e) {
+                   // Errors too, so the client always gets an answer instead of a hung exchange.
+                   e.printStackTrace();
+                   status = 500;
+                   reply = error("internal error");
+               }
+               byte[] bytes = reply.getBytes(StandardCharsets.UTF_8);
+               ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+               ex.sendResponseHeaders(status, bytes.length);
+               try (OutputStream out = ex.getResponseBody()) {
+                   out.write(bytes);
+               }
+           });
+       }
+
+
+       private static String body(HttpExchange ex) throws IOException, ApiException {
+           byte[] bytes = ex.getRequestBody().readNBytes(MAX_BODY + 1);
+           if (bytes.length > MAX_BODY) throw new ApiException(413, "request body is over " + MAX_BODY + " bytes");
+           return new String(bytes, StandardCharsets.UTF_8);
+       }
+
+
+       private static Map<String, String> query(String raw) {
+           Map<String, String> query = new HashMap<>();
+           if (raw == null) return query;
+           for (String pair : raw.split("&")) {
+               int eq = pair.indexOf('=');
+               String name = eq < 0 ? pair : pair.substring(0, eq);
+               String value = eq < 0 ? "" : pair.substring(eq + 1);
+               query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+           }
+           return query;
+       }
+
+
+       private static String required(Map<String, String> query, String name) throws ApiException {
+           String value = query.get(name);
+           if (value == null || value.isBlank()) throw new ApiException(400, "missing parameter: " + name);
+           return value.trim();
+       }
+
+
+       private static String student(Map<String, String> query, String body) throws ApiException {
+           String name = required(query, "name");
+           StudentStore.get().sync();
+           Student s = CSVHandler.findStudent(name);
+           if (s == null) throw new ApiException(404, "no such student: " + name);
+           return Json.student(s, CSVHandler.rank(name));
+       }
+
+
+       // Unknown names are reported back rather than failing the whole batch.
+       private static String award(Map<String, String> query, String body) throws ApiException {
+           Object parsed = Json.parse(body);
+           List<?> entries = parsed instanceof List ? (List<?>) parsed : Collections.singletonList(parsed);
+           List<Award> batch = new ArrayList<>();
+           for (Object entry : entries) {
+               if (!(entry instanceof Map)) throw new ApiException(400, "each award must be an object");
+               Map<?, ?> m = (Map<?, ?>) entry;
+               if (!(m.get("name") instanceof String) || !(m.get("points") instanceof Double)) {
+                   throw new ApiException(400, "each award needs a name and points");
+               }
+               String name = (String) m.get("name");
+               double points = (Double) m.get("points");
+               if (points != Math.rint(points) || Math.abs(points) > Integer.MAX_VALUE) {
+                   throw new ApiException(400, "points must be a whole number");
+               }
+               String category = Award.category(m.get("category") instanceof String ? (String) m.get("category") : null);
+               batch.add(new Award(0, 0, name, (int) points, category));
+           }
+
+
+           // The whole request is one store batch: one lock, one ledger write.
+           Set<String> appliedKeys = new HashSet<>();
+           for (Award a : CSVHandler.addPoints(batch)) {
+               appliedKeys.add(a.key);
+           }
+           List<String> unknown = new ArrayList<>();
+           int awarded = 0;
+           for (Award a : batch) {
+               if (appliedKeys.contains(StudentStore.key(a.key))) awarded++;
+               else unknown.add(a.key);
+           }
+           StringBuilder out = new StringBuilder("{\"awarded\":").append(awarded).append(",\"unknown\":[");
+           for (int i = 0; i < unknown.size(); i++) {
+               if (i > 0) out.append(',');
+               out.append(Json.quote(unknown.get(i)));
+           }
+           return out.append("]}").toString();
+       }
+
+
+       private static String leaderboard(Map<String, String> query, String body) throws ApiException {
+           int k;
+           try {
+               k = Integer.parseInt(query.getOrDefault("k", "3").trim());
+           } catch (NumberFormatException e) {
+               throw new ApiException(400, "k must be a number");
+           }
+           if (k < 1 || k > MAX_K) throw new ApiException(400, "k must be between 1 and " + MAX_K);
+           String school = query.get("school");
+           String className = query.get("class");
+           StudentStore store = StudentStore.get();
+           store.sync();
+           if (className != null) return Json.students(store.top(school == null ? "" : school, className, k));
+           if (school != null) return Json.students(store.schoolTop(school, k));
+           return Json.students(store.top(k));
+       }
+
+
+       private static String raffle(Map<String, String> query, String body) {
+           StudentStore.get().sync();
+           if (query.containsKey("class")) {
+               return Json.students(CSVHandler.raffleEligible(query.getOrDefault("school", ""), query.get("class")));
+           }
+           return Json.students(CSVHandler.raffleEligible());
+       }
+
+
+       private static String profile(Map<String, String> query, String body) throws ApiException {
+           String username = required(query, "username");
+           String role = required(query, "role");
+           Profile p = ProfileHandler.findByUsernameAndRole(username, role);
+           if (p == null) throw new ApiException(404, "no such profile: " + username);
+           return "{\"role\":" + Json.quote(p.role) + ",\"fullName\":" + Json.quote(p.fullName)
+                   + ",\"username\":" + Json.quote(p.username) + ",\"linkedName\":" + Json.quote(p.linkedName) + "}";
+       }
+
+
+       private static String error(String message) {
+           return "{\"error\":" + Json.quote(message == null ? "" : message) + "}";
+       }
+   }
+
+
+   // Just enough JSON for the API: writing students and strings, and parsing request bodies
+   // into Map, List, String, Double, Boolean or null. Malformed input, or arrays and objects nested
+   // deeper than MAX_DEPTH, throws IllegalArgumentException.
+   static class Json {
+       static final int MAX_DEPTH = 64;
+       private final String text;
+       private int pos;
+       private int depth;
+
+
+       private Json(String text) {
+           this.text = text;
+       }
+
+
+       public static String quote(String value) {
+           StringBuilder out = new StringBuilder(value.length() + 2).append('"');
+           for (int i = 0; i < value.length(); i++) {
+               char c = value.charAt(i);
+               switch (c) {
+                   case '"': out.append("\\\""); break;
+                   case '\\': out.append("\\\\"); break;
+                   case '\n': out.append("\\n"); break;
+                   case '\r': out.append("\\r"); break;
+                   case '\t': out.append("\\t"); break;
+                   default:
+                       if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                       else out.append(c);
+               }
+           }
+           return out.append('"').toString();
+       }
+
+
+       public static String student(Student s, int rank) {
+           return "{\"name\":" + quote(s.getFullName()) + ",\"points\":" + s.points
+                   + ",\"school\":" + quote(s.school) + ",\"class\":" + quote(s.className)
+                   + ",\"rank\":" + rank + ",\"raffleEligible\":" + s.isRaffleEligible() + "}";
+       }
+
+
+       public static String students(List<Student> list) {
+           StringBuilder out = new StringBuilder("[");
+           for (int i = 0; i < list.size(); i++) {
+               Student s = list.get(i);
+               if (i > 0) out.append(',');
+               out.append("{\"name\":").append(quote(s.getFullName())).append(",\"points\":").append(s.points).append('}');
+           }
+           return out.append(']').toString();
+       }
+
+
+       public static Object parse(String text) {
+           Json p = new Json(text);
+           Object value = p.value();
+           p.skipSpace();
+           if (p.pos != text.length()) throw p.error("trailing characters");
+           return value;
+       }
+
+
+       private Object value() {
+           skipSpace();
+           if (pos >= text.length()) throw error("unexpected end of input");
+           char c = text.charAt(pos);
+           if (c == '{') return object();
+           if (c == '[') return array();
+           if (c == '"') return string();
+           if (text.startsWith("true", pos)) return literal("true", Boolean.TRUE);
+           if (text.startsWith("false", pos)) return literal("false", Boolean.FALSE);
+           if (text.startsWith("null", pos)) return literal("null", null);
+           return number();
+       }
+
+
+       private Map<String, Object> object() {
+           enter();
+           Map<String, Object> map = new LinkedHashMap<>();
+           pos++;
+           skipSpace();
+           if (peek() == '}') {
+               pos++;
+               depth--;
+               return map;
+           }
+           while (true) {
+               skipSpace();
+               if (peek() != '"') throw error("expected a field name");
+               String name = string();
+               skipSpace();
+               expect(':');
+               map.put(name, value());
+               skipSpace();
+               if (peek() == ',') {
+                   pos++;
+               } else {
+                   expect('}');
+                   depth--;
+                   return map;
+               }
+           }
+       }
+
+
+       private List<Object> array() {
+           enter();
+           List<Object> list = new ArrayList<>();
+           pos++;
+           skipSpace();
+           if (peek() == ']') {
+               pos++;
+               depth--;
+               return list;
+           }
+           while (true) {
+               list.add(value());
+               skipSpace();
+               if (peek() == ',') {
+                   pos++;
+               } else {
+                   expect(']');
+                   depth--;
+                   return list;
+               }
+           }
+       }
+
+
+       private void enter() {
+           if (++depth > MAX_DEPTH) throw error("nested deeper than " + MAX_DEPTH);
+       }
+
+
+       private String string() {
+           StringBuilder out = new StringBuilder();
+           pos++;
+           while (pos < text.length()) {
+               char c = text.charAt(pos++);
+               if (c == '"') return out.toString();
+               if (c != '\\') {
+                   out.append(c);
+                   continue;
+               }
+               if (pos >= text.length()) break;
+               char e = text.charAt(pos++);
+               switch (e) {
+                   case 'n': out.append('\n'); break;
+                   case 'r': out.append('\r'); break;
+                   case 't': out.append('\t'); break;
+                   case 'b': out.append('\b'); break;
+                   case 'f': out.append('\f'); break;
+                   case 'u':
+                       if (pos + 4 > text.length()) throw error("bad escape");
+                       try {
+                           out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                       } catch (NumberFormatException ex) {
+                           throw error("bad escape");
+                       }
+                       pos += 4;
+                       break;
+                   default: out.append(e);
+               }
+           }
+           throw error("unterminated string");
+       }
+
+
+       private Double number() {
+           int start = pos;
+           while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) pos++;
+           try {
+               return Double.valueOf(text.substring(start, pos));
+           } catch (NumberFormatException e) {
+               throw error("expected a value");
+           }
+       }
+
+
+       private Object literal(String word, Object value) {
+           pos += word.length();
+           return value;
+       }
+
+
+       private void skipSpace() {
+           while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+       }
+
+
+       private char peek() {
+           return pos < text.length() ? text.charAt(pos) : 0;
+       }
+
+
+       private void expect(char c) {
+           if (peek() != c) throw error("expected '" + c + "'");
+           pos++;
+       }
+
+
+       private IllegalArgumentException error(String message) {
+           return new IllegalArgumentException("bad JSON at " + pos + ": " + message);
+       }
+   }
+
+
+   // -------------------- BACKGROUND DATA ACCESS --------------------
+
+
+   // Store calls run on virtual threads so a slow disk or a large roster never blocks the EDT.
+   // Results are handed back on the EDT, and the window shows a wait cursor while calls are in flight.
+   static class DataAccess {
+       static final ExecutorService IO = Executors.newVirtualThreadPerTaskExecutor();
+       private static final String IN_FLIGHT = "rewards.inFlight";
+
+
+       interface Task<T> {
+           T call() throws Exception;
+       }
+
+
+       public static <T> void run(Component owner, Task<T> task, Consumer<T> onDone) {
+           run(owner, null, task, onDone);
+       }
+
+
+       // trigger, if given, stays disabled until the result is back so it cannot be double-submitted.
+       public static <T> void run(Component owner, AbstractButton trigger, Task<T> task, Consumer<T> onDone) {
+           setBusy(owner, true);
+           if (trigger != null) trigger.setEnabled(false);
+           IO.execute(() -> {
+               try {
+                   T result = task.call();
+                   SwingUtilities.invokeLater(() -> {
+                       finish(owner, trigger);
+                       onDone.accept(result);
+                   });
+               } catch (Exception e) {
+                   e.printStackTrace();
+                   SwingUtilities.invokeLater(() -> {
+                       finish(owner, trigger);
+                       JOptionPane.showMessageDialog(owner, "Could not complete the request: " + e.getMessage());
+                   });
+               }
+           });
+       }
+
+
+       private static void finish(Component owner, AbstractButton trigger) {
+           setBusy(owner, false);
+           if (trigger != null) trigger.setEnabled(true);
+       }
+
+
+       // Counts in-flight calls per window; EDT only.
+       public static void setBusy(Component owner, boolean busy) {
+           JRootPane root = SwingUtilities.getRootPane(owner);
+           if (root == null) return;
+           Integer n = (Integer) root.getClientProperty(IN_FLIGHT);
+           int count = Math.max(0, (n == null ? 0 : n) + (busy ? 1 : -1));
+           root.putClientProperty(IN_FLIGHT, count);
+           root.setCursor(count > 0 ? Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR) : null);
+       }
+   }
+
+
+   // Coalesces rapid award clicks: awards for the same student and category that arrive within
+   // COALESCE_MS are summed and persisted as one delta, and each listener runs once on the EDT.
+   // A batch that cannot be saved is reported in a dialog, not lost on the background thread.
+   static class AwardBatcher {
+       static final int COALESCE_MS = 250;
+
+
+       private static final Map<String, Award> pending = new LinkedHashMap<>();
+       private static final Set<Runnable> listeners = new LinkedHashSet<>();
+       private static boolean scheduled;
+
+
+       public static void award(String fullName, int pts, String category, Runnable onSaved) {
+           award(Collections.singletonList(fullName), pts, category, onSaved);
+       }
+
+
+       // The same award for every student, e.g. a whole table selected on the dashboard.
+       public static synchronized void award(List<String> fullNames, int pts, String category, Runnable onSaved) {
+           category = Award.category(category);
+           for (String fullName : fullNames) {
+               String studentKey = StudentStore.key(fullName);
+               String key = studentKey + "\n" + category;
+               Award a = pending.get(key);
+               if (a == null) {
+                   pending.put(key, new Award(0, System.currentTimeMillis(), studentKey, pts, category));
+               } else {
+                   a.delta += pts;
+               }
+           }
+           if (onSaved != null) listeners.add(onSaved);
+           if (!scheduled) {
+               scheduled = true;
+               DataAccess.IO.execute(AwardBatcher::flushLater);
+           }
+       }
+
+
+       private static void flushLater() {
+           try {
+               Thread.sleep(COALESCE_MS);
+           } catch (InterruptedException ignored) {
+           }
+
+
+           List<Award> batch;
+           List<Runnable> toNotify;
+           synchronized (AwardBatcher.class) {
+               batch = new ArrayList<>(pending.values());
+               toNotify = new ArrayList<>(listeners);
+               pending.clear();
+               listeners.clear();
+               scheduled = false;
+           }
+
+
+           try {
+               CSVHandler.addPoints(batch);
+               SwingUtilities.invokeLater(() -> toNotify.forEach(Runnable::run));
+           } catch (RuntimeException e) {
+               e.printStackTrace();
+               SwingUtilities.invokeLater(() -> {
+                   toNotify.forEach(Runnable::run);
+                   JOptionPane.showMessageDialog(null, "Could not save " + batch.size() + " awards: " + e.getMessage());
+               });
+           }
+       }
+   }
+
+
+   // -------------------- SHARED DATA LOCK --------------------
+
+
+   // Exclusive lock on rewards.lock in the data directory, held while a process reads or changes
+   // the shared data files. A FileLock belongs to the whole JVM, so threads of this process queue
+   // on a ReentrantLock first and only the outermost holder takes the file lock.
+   // The lock file is never deleted: a process that opened the old file would lock a different one.
+   static class DataLock {
+       static final String FILE = Settings.dataFile("rewards.lock");
+       static final String USERS_FILE = Settings.dataFile("rewards.users");
+       private static final ReentrantLock local = new ReentrantLock();
+       private static FileChannel channel;
+       private static FileLock held;
+       private static FileChannel usersChannel;
+       private static FileLock presence;
+
+
+       // Every process holds a shared lock on rewards.users for as long as it runs, so the
+       // ephemeral exit cleanup can tell whether anyone else still uses the data.
+       public static synchronized void join() {
+           try {
+               usersChannel = FileChannel.open(Paths.get(USERS_FILE),
+                       StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+               presence = usersChannel.lock(0, Long.MAX_VALUE, true);
+           } catch (IOException e) {
+               throw new UncheckedIOException("Could not lock " + USERS_FILE, e);
+           }
+       }
+
+
+       // Trades this process's shared lock for an exclusive one, which is only granted once every
+       // other process has exited. Processes starting meanwhile wait in join() until this one is gone.
+       public static synchronized boolean lastUser() {
+           if (usersChannel == null) return false;
+           try {
+               if (presence != null) presence.release();
+               presence = usersChannel.tryLock(0, Long.MAX_VALUE, false);
+               return presence != null;
+           } catch (IOException e) {
+               e.printStackTrace();
+               return false;
+           }
+       }
+
+
+       public static void run(Runnable op) {
+           call(() -> {
+               op.run();
+               return null;
+           });
+       }
+
+
+       public static <T> T call(Supplier<T> op) {
+           local.lock();
+           try {
+               boolean outermost = local.getHoldCount() == 1;
+               if (outermost) acquire();
+               try {
+                   return op.get();
+               } finally {
+                   if (outermost) release();
+               }
+           } finally {
+               local.unlock();
+           }
+       }
+
+
+       // Without the file lock another instance could interleave its writes, so the change is
+       // refused rather than made unlocked.
+       private static void acquire() {
+           try {
+               if (channel == null || !channel.isOpen()) {
+                   channel = FileChannel.open(Paths.get(FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+               }
+               held = channel.lock();
+           } catch (IOException e) {
+               throw new UncheckedIOException("Could not lock " + FILE, e);
+           }
+       }
+
+
+       private static void release() {
+           try {
+               if (held != null) held.release();
+           } catch (Exception e) {
+               e.printStackTrace();
+           }
+           held = null;
+       }
+   }
+
+
+   // -------------------- METRICS --------------------
+
+
+   // Off unless rewards.metrics=true. ENABLED is a static final, so with metrics off the JIT folds
+   // every timing call away. Each operation keeps a call count and a latency histogram; the Io
+   // counters add up bytes read and written and rows parsed across the roster, profile and
+   // ledger files. All of it is registered as MBeans under "classroomRewardsTracker:" and shown
+   // in the diagnostics window (Ctrl+Shift+D on the teacher dashboard).
+   static class Metrics {
+       static final boolean ENABLED = Boolean.parseBoolean(Settings.get("rewards.metrics", "false").trim());
+       private static final String DOMAIN = "classroomRewardsTracker";
+       private static final Map<String, Operation> operations = new LinkedHashMap<>();
+       static final Io IO = register("type=Io", new Io());
+
+
+       static final Operation LOAD_ALL = operation("loadAll");
+       static final Operation SAVE_ALL = operation("saveAll");
+       static final Operation ADD_STUDENTS = operation("addStudents");
+       static final Operation DELETE_STUDENT = operation("deleteStudent");
+       static final Operation FIND_STUDENT = operation("findStudent");
+       static final Operation ADD_POINTS = operation("addPoints");
+       static final Operation ADD_POINTS_BATCH = operation("addPoints(batch)");
+       static final Operation TOP3 = operation("top3");
+       static final Operation RAFFLE_DRAW = operation("drawRaffleWinner");
+       static final Operation LOGIN = operation("login");
+       static final Operation PARENT_LINK = operation("login.parentLink");
+       static final Operation STORE_LOAD = operation("store.load");
+       static final Operation STORE_FLUSH = operation("store.flush");
+       static final Operation EDT_CLICK = operation("edt.click");
+
+
+       public interface OperationMBean {
+           long getCount();
+
+
+           double getMeanMicros();
+
+
+           double getP50Micros();
+
+
+           double getP90Micros();
+
+
+           double getP99Micros();
+
+
+           double getP999Micros();
+
+
+           double getMaxMicros();
+
+
+           void reset();
+       }
+
+
+       public interface IoMBean {
+           long getBytesRead();
+
+
+           long getBytesWritten();
+
+
+           long getRowsParsed();
+
+
+           void reset();
+       }
+
+
+       // Returns the start time to hand to Operation.stop, or 0 when metrics are off.
+       static long start() {
+           return ENABLED ? System.nanoTime() : 0;
+       }
+
+
+       static void read(long bytes, long rows) {
+           if (!ENABLED) return;
+           IO.bytesRead.add(bytes);
+           IO.rowsParsed.add(rows);
+       }
+
+
+       static void wrote(long bytes) {
+           if (!ENABLED) return;
+           IO.bytesWritten.add(bytes);
+       }
+
+
+       static synchronized List<Operation> operations() {
+           return new ArrayList<>(operations.values());
+       }
+
+
+       static void reset() {
+           for (Operation op : operations()) op.reset();
+           IO.reset();
+       }
+
+
+       // One line per operation that has been called, then the Io counters; times in microseconds.
+       static String report() {
+           StringBuilder sb = new StringBuilder();
+           sb.append(String.format("%-20s %9s %9s %9s %9s %9s %9s%n", "operation", "count", "mean", "p50", "p90", "p99", "max"));
+           for (Operation op : operations()) {
+               if (op.getCount() == 0) continue;
+               sb.append(String.format("%-20s %9d %9.1f %9.1f %9.1f %9.1f %9.1f%n", op.name, op.getCount(),
+                       op.getMeanMicros(), op.getP50Micros(), op.getP90Micros(), op.getP99Micros(), op.getMaxMicros()));
+           }
+           sb.append(String.format("%nbytes read %d, bytes written %d, rows parsed %d%n",
+                   IO.getBytesRead(), IO.getBytesWritten(), IO.getRowsParsed()));
+           return sb.toString();
+       }
+
+
+       private static synchronized Operation operation(String name) {
+           Operation op = register("type=Operation,name=" + name, new Operation(name));
+           operations.put(name, op);
+           return op;
+       }
+
+
+       private static <T> T register(String name, T mbean) {
+           if (!ENABLED) return mbean;
+           try {
+               ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new javax.management.ObjectName(DOMAIN + ":" + name));
+           } catch (Exception e) {
+               e.printStackTrace();
+           }
+           return mbean;
+       }
+
+
+       // Latencies in nanoseconds, bucketed log-linearly the way HdrHistogram does it: exact below
+       // 16 ns, then 16 sub-buckets per power of two, so a percentile is within about 6% of the
+       // true value. Recording is a few atomic adds and never allocates.
+       static class Operation implements OperationMBean {
+           private static final int SUB_BITS = 4;
+           private static final int SUB = 1 << SUB_BITS;
+
+
+           final String name;
+           private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB);
+           private final LongAdder count = new LongAdder();
+           private final LongAdder total = new LongAdder();
+           private final AtomicLong max = new AtomicLong();
+
+
+           Operation(String name) {
+               this.name = name;
+           }
+
+
+           void stop(long start) {
+               if (!ENABLED) return;
+               record(System.nanoTime() - start);
+           }
+
+
+           void record(long nanos) {
+               if (nanos < 0) nanos = 0;
+               buckets.incrementAndGet(index(nanos));
+               count.increment();
+               total.add(nanos);
+               max.accumulateAndGet(nanos, Math::max);
+           }
+
+
+           static int index(long v) {
+               if (v < SUB) return (int) v;
+               int exp = 63 - Long.numberOfLeadingZeros(v);
+               return (exp - SUB_BITS + 1) * SUB + (int) (v >>> (exp - SUB_BITS)) - SUB;
+           }
+
+
+           // The largest value that lands in bucket i.
+           static long highest(int i) {
+               if (i < SUB) return i;
+               int shift = i / SUB - 1;
+               return ((long) (i % SUB + SUB + 1) << shift) - 1;
+           }
+
+
+           long percentile(double q) {
+               long n = count.sum();
+               if (n == 0) return 0;
+               long rank = Math.max(1, (long) Math.ceil(q * n));
+               long seen = 0;
+               for (int i = 0; i < buckets.length(); i++) {
+                   seen += buckets.get(i);
+                   if (seen >= rank) return Math.min(highest(i), max.get());
+               }
+               return max.get();
+           }
+
+
+           @Override
+           public long getCount() {
+               return count.sum();
+           }
+
+
+           @Override
+           public double getMeanMicros() {
+               long n = count.sum();
+               return n == 0 ? 0 : total.sum() / 1000.0 / n;
+           }
+
+
+           @Override
+           public double getP50Micros() {
+               return percentile(0.50) / 1000.0;
+           }
+
+
+           @Override
+           public double getP90Micros() {
+               return percentile(0.90) / 1000.0;
+           }
+
+
+           @Override
+           public double getP99Micros() {
+               return percentile(0.99) / 1000.0;
+           }
+
+
+           @Override
+           public double getP999Micros() {
+               return percentile(0.999) / 1000.0;
+           }
+
+
+           @Override
+           public double getMaxMicros() {
+               return max.get() / 1000.0;
+           }
+
+
+           @Override
+           public void reset() {
+               for (int i = 0; i < buckets.length(); i++) buckets.set(i, 0);
+               count.reset();
+               total.reset();
+               max.set(0);
+           }
+       }
+
+
+       static class Io implements IoMBean {
+           final LongAdder bytesRead = new LongAdder();
+           final LongAdder bytesWritten = new LongAdder();
+           final LongAdder rowsParsed = new LongAdder();
+
+
+           @Override
+           public long getBytesRead() {
+               return bytesRead.sum();
+           }
+
+
+           @Override
+           public long getBytesWritten() {
+               return bytesWritten.sum();
+           }
+
+
+           @Override
+           public long getRowsParsed() {
+               return rowsParsed.sum();
+           }
+
+
+           @Override
+           public void reset() {
+               bytesRead.reset();
+               bytesWritten.reset();
+               rowsParsed.reset();
+           }
+       }
+
+
+       // Times each mouse release and key press the event queue dispatches, which is where button
+       // and keyboard actions run. main installs it only when metrics are on.
+       static class TimedEventQueue extends EventQueue {
 
 
-       public static List<Student> top3() {
-           List<Student> all = loadAll();
-           all.sort((a, b) -> b.points - a.points);
-           return all.subList(0, Math.min(3, all.size()));
-       }
+           // Kept out of main so the headless path never loads an AWT class.
+           static void install() {
+               Toolkit.getDefaultToolkit().getSystemEventQueue().push(new TimedEventQueue());
+           }
 
 
-       public static List<Student> raffleEligible() {
-           List<Student> eligible = new ArrayList<>();
-           for (Student s : loadAll()) {
-               if (s.points > 50) eligible.add(s);
+           @Override
+           protected void dispatchEvent(AWTEvent event) {
+               int id = event.getID();
+               if (id != MouseEvent.MOUSE_RELEASED && id != KeyEvent.KEY_PRESSED) {
+                   super.dispatchEvent(event);
+                   return;
+               }
+               long start = System.nanoTime();
+               super.dispatchEvent(event);
+               EDT_CLICK.stop(start);
            }
-           return eligible;
        }
    }
 
 
-   // -------------------- PROFILE DATA --------------------
+   // -------------------- FILE WRITES --------------------
 
 
-   static class Profile {
-       String role;       // teacher, student, parent
-       String fullName;   // person name
-       String username;   // jsmith.teacher, abrown.student, mlee.parent
-       String linkedName; // teacher: school name; student: "None"; parent: student name
+   // Snapshot files are written to "<name>.tmp", forced to disk and then renamed over the
+   // original, so a crash leaves either the old file or the new one and never half of each.
+   static class AtomicFile {
+       private static final int BUFFER_SIZE = 1 << 16;
 
 
-       public Profile(String role, String fullName, String username, String linkedName) {
-           this.role = role;
-           this.fullName = fullName;
-           this.username = username;
-           this.linkedName = linkedName;
+       interface Rows {
+           void writeTo(Writer out) throws IOException;
        }
-   }
 
 
-   static class ProfileHandler {
-       private static final String FILE = "profiles.csv";
+       interface Bytes {
+           void writeTo(OutputStream out) throws IOException;
+       }
 
 
-       public static List<Profile> loadAll() {
-           List<Profile> list = new ArrayList<>();
-           File f = new File(FILE);
-           if (!f.exists()) return list;
+       public static void write(String file, Rows rows) throws IOException {
+           replace(file, ch -> {
+               Writer out = new BufferedWriter(
+                       Channels.newWriter(ch, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE), BUFFER_SIZE);
+               rows.writeTo(out);
+               out.flush();
+           });
+       }
 
 
-           try (BufferedReader br = new BufferedReader(new FileReader(FILE))) {
-               String line;
-               while ((line = br.readLine()) != null) {
-                   String[] p = line.split(",", -1);
-                   if (p.length < 4) continue;
-                   list.add(new Profile(p[0], p[1], p[2], p[3]));
-               }
-           } catch (Exception e) {
-               e.printStackTrace();
-           }
-           return list;
+       public static void writeBytes(String file, Bytes bytes) throws IOException {
+           replace(file, ch -> {
+               OutputStream out = new BufferedOutputStream(Channels.newOutputStream(ch), BUFFER_SIZE);
+               bytes.writeTo(out);
+               out.flush();
+           });
        }
 
 
-       public static void saveAll(List<Profile> list) {
-           try (FileWriter fw = new FileWriter(FILE)) {
-               for (Profile p : list) {
-                   fw.write(p.role + "," + p.fullName + "," + p.username + "," + p.linkedName + "\n");
-               }
-           } catch (Exception e) {
-               e.printStackTrace();
-           }
+       private interface Body {
+           void writeTo(FileChannel ch) throws IOException;
        }
 
 
-       public static void addProfile(Profile p) {
-           List<Profile> all = loadAll();
-           all.add(p);
-           saveAll(all);
-       }
+       private static void replace(String file, Body body) throws IOException {
+           Path target = Paths.get(file).toAbsolutePath();
+           Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
 
 
-       public static Profile findByUsernameAndRole(String username, String role) {
-           for (Profile p : loadAll()) {
-               if (p.username.equalsIgnoreCase(username.trim()) && p.role.equalsIgnoreCase(role)) {
-                   return p;
-               }
+           try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+               body.writeTo(ch);
+               ch.force(true);
+               Metrics.wrote(ch.size());
            }
-           return null;
-       }
 
 
-       public static Profile findParentForStudent(String username, String studentName) {
-           for (Profile p : loadAll()) {
-               if (p.role.equalsIgnoreCase("parent")
-                       && p.username.equalsIgnoreCase(username.trim())
-                       && p.linkedName.equalsIgnoreCase(studentName.trim())) {
-                   return p;
-               }
+           try {
+               Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+           } catch (AtomicMoveNotSupportedException e) {
+               Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
            }
-           return null;
+           syncDirectory(target.getParent());
        }
 
 
-       public static String generateUsername(String fullName, String role) {
-           String[] parts = fullName.trim().split("\\s+");
-           if (parts.length == 0) return "";
-           String first = parts[0].toLowerCase();
-           String last = parts[parts.length - 1].toLowerCase();
-           String base = (first.substring(0, 1) + last);
-           String suffix = "";
-           if (role.equalsIgnoreCase("teacher")) suffix = ".teacher";
-           else if (role.equalsIgnoreCase("student")) suffix = ".student";
-           else if (role.equalsIgnoreCase("parent")) suffix = ".parent";
-           return base + suffix;
+       // Makes the rename itself durable; not every platform lets a directory be opened.
+       private static void syncDirectory(Path dir) {
+           try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+               ch.force(true);
+           } catch (IOException ignored) {
+           }
        }
    }
 
@@ -260,6 +5398,7 @@ public class classroomRewardsTracker {
 
 
            JButton createBtn = new JButton("Create Profile");
+           JButton importBtn = new JButton("Import CSV");
            JButton goLoginBtn = new JButton("Go to Login");
 
 
@@ -273,6 +5412,7 @@ public class classroomRewardsTracker {
 
            JPanel bottomPanel = new JPanel();
            bottomPanel.add(createBtn);
+           bottomPanel.add(importBtn);
            bottomPanel.add(goLoginBtn);
            add(bottomPanel);
 
@@ -306,21 +5446,21 @@ public class classroomRewardsTracker {
                        JOptionPane.showMessageDialog(this, "Enter school name.");
                        return;
                    }
-                   String username = ProfileHandler.generateUsername(fullName, "teacher");
-                   ProfileHandler.addProfile(new Profile("teacher", fullName, username, extra));
-                   JOptionPane.showMessageDialog(this, "Teacher profile created. Username: " + username);
+                   Profile p = new Profile("teacher", fullName, ProfileHandler.generateUsername(fullName, "teacher"), extra);
+                   ProfileHandler.addProfile(p);
+                   JOptionPane.showMessageDialog(this, "Teacher profile created. Username: " + p.username);
                } else if (role.equals("student")) {
-                   String username = ProfileHandler.generateUsername(fullName, "student");
-                   ProfileHandler.addProfile(new Profile("student", fullName, username, "None"));
-                   JOptionPane.showMessageDialog(this, "Student profile created. Username: " + username);
+                   Profile p = new Profile("student", fullName, ProfileHandler.generateUsername(fullName, "student"), "None");
+                   ProfileHandler.addProfile(p);
+                   JOptionPane.showMessageDialog(this, "Student profile created. Username: " + p.username);
                } else if (role.equals("parent")) {
                    if (extra.isEmpty()) {
                        JOptionPane.showMessageDialog(this, "Enter student full name.");
                        return;
                    }
-                   String username = ProfileHandler.generateUsername(fullName, "parent");
-                   ProfileHandler.addProfile(new Profile("parent", fullName, username, extra));
-                   JOptionPane.showMessageDialog(this, "Parent profile created. Username: " + username);
+                   Profile p = new Profile("parent", fullName, ProfileHandler.generateUsername(fullName, "parent"), extra);
+                   ProfileHandler.addProfile(p);
+                   JOptionPane.showMessageDialog(this, "Parent profile created. Username: " + p.username);
                }
 
 
@@ -329,6 +5469,10 @@ public class classroomRewardsTracker {
            });
 
 
+           importBtn.addActionListener(e ->
+                   RosterImport.chooseAndRun(this, "profiles", RosterImport::importProfiles, () -> { }));
+
+
            goLoginBtn.addActionListener(e -> {
                dispose();
                new LoginScreen();
@@ -405,13 +5549,14 @@ public class classroomRewardsTracker {
                    JOptionPane.showMessageDialog(this, "Username must end with .teacher");
                    return;
                }
-               Profile p = ProfileHandler.findByUsernameAndRole(username, "teacher");
-               if (p == null) {
-                   JOptionPane.showMessageDialog(this, "Teacher profile not found.");
-                   return;
-               }
-               dispose();
-               new TeacherDashboard();
+               DataAccess.run(this, loginBtn, () -> ProfileHandler.findByUsernameAndRole(username, "teacher"), p -> {
+                   if (p == null) {
+                       JOptionPane.showMessageDialog(this, "Teacher profile not found.");
+                       return;
+                   }
+                   dispose();
+                   new TeacherDashboard(p);
+               });
            });
 
 
@@ -439,8 +5584,10 @@ public class classroomRewardsTracker {
    static class TeacherDashboard extends JFrame {
 
 
-       DefaultListModel<String> studentListModel = new DefaultListModel<>();
-       JList<String> studentList = new JList<>(studentListModel);
+       final String school;     // partition this dashboard works on
+       final String className;
+       final StudentListModel studentListModel;
+       final JList<String> studentList;
 
 
        JTextField firstNameField = new JTextField(10);
@@ -452,15 +5599,24 @@ public class classroomRewardsTracker {
        JLabel raffleLabel = new JLabel("Raffle Eligible: NO");
 
 
-       DefaultListModel<String> leaderboardModel = new DefaultListModel<>();
-       DefaultListModel<String> raffleModel = new DefaultListModel<>();
+       final LeaderboardViewModel classBoard;
+       final LeaderboardViewModel schoolBoard;
 
 
        String currentSelectedStudent = null;
+       boolean awardPending = false;
 
 
-       public TeacherDashboard() {
-           setTitle("Teacher Dashboard");
+       public TeacherDashboard(Profile teacher) {
+           school = teacher.linkedName;
+           className = teacher.username;
+           studentListModel = new StudentListModel(school, className);
+           studentList = new JList<>(studentListModel);
+           classBoard = LeaderboardViewModel.forClass(school, className);
+           schoolBoard = LeaderboardViewModel.forSchool(school);
+
+
+           setTitle("Teacher Dashboard - " + school);
            setSize(500, 600);
            setDefaultCloseOperation(EXIT_ON_CLOSE);
            setLayout(new BorderLayout());
@@ -485,13 +5641,21 @@ public class classroomRewardsTracker {
 
            JButton addBtn = new JButton("Add Student");
            JButton deleteBtn = new JButton("Delete Student");
+           JButton importBtn = new JButton("Import CSV");
+           JButton claimBtn = new JButton("Claim Unassigned");
            topPanel.add(addBtn);
            topPanel.add(deleteBtn);
+           topPanel.add(importBtn);
+           topPanel.add(claimBtn);
 
 
            add(topPanel, BorderLayout.NORTH);
 
 
+           // A prototype value fixes every cell's size, so the list never measures 50k names.
+           studentList.setPrototypeCellValue("Wwwwwwwwwwwwwww Wwwwwwwwwwwwwwwwwwww");
+           // Ctrl/Shift-click or Ctrl+A selects a table or the whole class for one award.
+           studentList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
            add(new JScrollPane(studentList), BorderLayout.CENTER);
 
 
@@ -504,24 +5668,15 @@ public class classroomRewardsTracker {
            bottomPanel.add(raffleLabel);
 
 
+           // The button model only knows the category through its action command.
            JPanel awardPanel = new JPanel();
-           JRadioButton participation = new JRadioButton("Participation");
-           JRadioButton teamwork = new JRadioButton("Teamwork");
-           JRadioButton onTask = new JRadioButton("On Task");
-           JRadioButton behaviour = new JRadioButton("Behaviour");
-
-
            ButtonGroup group = new ButtonGroup();
-           group.add(participation);
-           group.add(teamwork);
-           group.add(onTask);
-           group.add(behaviour);
-
-
-           awardPanel.add(participation);
-           awardPanel.add(teamwork);
-           awardPanel.add(onTask);
-           awardPanel.add(behaviour);
+           for (String category : Award.CATEGORIES) {
+               JRadioButton button = new JRadioButton(category);
+               button.setActionCommand(category);
+               group.add(button);
+               awardPanel.add(button);
+           }
 
 
            JButton awardBtn = new JButton("Award +5");
@@ -532,23 +5687,68 @@ public class classroomRewardsTracker {
 
 
            bottomPanel.add(new JLabel("Top 3 Students:"));
-           JList<String> leaderboardList = new JList<>(leaderboardModel);
+           JList<String> leaderboardList = new JList<>(classBoard.top);
            bottomPanel.add(leaderboardList);
 
 
+           bottomPanel.add(new JLabel("Top 3 in School:"));
+           JList<String> schoolLeaderboardList = new JList<>(schoolBoard.top);
+           bottomPanel.add(schoolLeaderboardList);
+
+
            bottomPanel.add(new JLabel("Raffle Eligible:"));
-           JList<String> raffleList = new JList<>(raffleModel);
+           JList<String> raffleList = new JList<>(classBoard.raffle);
            bottomPanel.add(raffleList);
 
 
+           JButton drawBtn = new JButton("Draw Raffle Winner");
+           bottomPanel.add(drawBtn);
+
+
            add(bottomPanel, BorderLayout.SOUTH);
 
 
-           loadStudentNames();
-           refreshLeaderboardAndRaffle();
+           // Not on any menu: Ctrl+Shift+D opens the diagnostics window.
+           getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(
+                   KeyStroke.getKeyStroke(KeyEvent.VK_D, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK), "diagnostics");
+           getRootPane().getActionMap().put("diagnostics", new AbstractAction() {
+               @Override
+               public void actionPerformed(ActionEvent e) {
+                   DiagnosticsWindow.open();
+               }
+           });
+
+
+           syncStore();
+
+
+           addWindowListener(new WindowAdapter() {
+               @Override
+               public void windowClosed(WindowEvent e) {
+                   studentListModel.detach();
+                   classBoard.release();
+                   schoolBoard.release();
+               }
+           });
+
 
+           addBtn.addActionListener(e -> addStudent(addBtn));
 
-           addBtn.addActionListener(e -> addStudent());
+
+           drawBtn.addActionListener(e -> DataAccess.run(this, drawBtn, () -> {
+               Student w = CSVHandler.drawRaffleWinner(school, className);
+               return w == null ? null : w.getFullName() + " (" + w.points + " pts)";
+           }, winner -> JOptionPane.showMessageDialog(this,
+                   winner == null ? "No students are eligible for the raffle yet." : "Raffle winner: " + winner)));
+
+
+           importBtn.addActionListener(e ->
+                   RosterImport.chooseAndRun(this, "students",
+                           (file, progress) -> RosterImport.importStudents(file, progress, school, className),
+                           this::syncStore));
+
+
+           claimBtn.addActionListener(e -> claimUnassigned(claimBtn));
 
 
            deleteBtn.addActionListener(e -> {
@@ -567,33 +5767,48 @@ public class classroomRewardsTracker {
 
 
                if (confirm == JOptionPane.YES_OPTION) {
-                   CSVHandler.deleteStudent(currentSelectedStudent);
-                   loadStudentNames();
-                   refreshLeaderboardAndRaffle();
-                   profileLabel.setText("Select a student");
-                   pointsLabel.setText("Points: ");
-                   raffleLabel.setText("Raffle Eligible: NO");
-                   currentSelectedStudent = null;
+                   String name = currentSelectedStudent;
+                   DataAccess.run(this, deleteBtn, () -> {
+                       CSVHandler.deleteStudent(name);
+                       return null;
+                   }, done -> {
+                       profileLabel.setText("Select a student");
+                       pointsLabel.setText("Points: ");
+                       raffleLabel.setText("Raffle Eligible: NO");
+                       currentSelectedStudent = null;
+                   });
                }
            });
 
 
            studentList.addListSelectionListener(e -> {
                if (!e.getValueIsAdjusting()) {
-                   String selected = studentList.getSelectedValue();
-                   if (selected != null) showStudentProfile(selected);
+                   List<String> selected = studentList.getSelectedValuesList();
+                   if (selected.size() == 1) {
+                       showStudentProfile(selected.get(0));
+                   } else if (selected.size() > 1) {
+                       currentSelectedStudent = null;
+                       profileLabel.setText(selected.size() + " students selected");
+                       pointsLabel.setText("Points: ");
+                       raffleLabel.setText("Raffle Eligible: ");
+                   }
                }
            });
 
 
            awardBtn.addActionListener(e -> {
-               if (currentSelectedStudent == null) {
+               List<String> students = studentList.getSelectedValuesList();
+               if (students.isEmpty()) {
                    JOptionPane.showMessageDialog(this, "Select a student first.");
                    return;
                }
-               CSVHandler.addPoints(currentSelectedStudent, 5);
-               showStudentProfile(currentSelectedStudent);
-               refreshLeaderboardAndRaffle();
+               ButtonModel selected = group.getSelection();
+               if (!awardPending) {
+                   awardPending = true;
+                   DataAccess.setBusy(this, true);
+               }
+               AwardBatcher.award(students, 5,
+                       selected == null ? Award.GENERAL : selected.getActionCommand(), afterAward);
            });
 
 
@@ -602,7 +5817,18 @@ public class classroomRewardsTracker {
        }
 
 
-       private void addStudent() {
+       // Runs once per coalesced batch of awards, after it has been persisted.
+       private final Runnable afterAward = () -> {
+           if (awardPending) {
+               awardPending = false;
+               DataAccess.setBusy(this, false);
+           }
+           if (currentSelectedStudent != null) showStudentProfile(currentSelectedStudent);
+           syncStore();
+       };
+
+
+       private void addStudent(JButton addBtn) {
            String fn = firstNameField.getText().trim();
            String ln = lastNameField.getText().trim();
 
@@ -613,55 +5839,128 @@ public class classroomRewardsTracker {
            }
 
 
-           Student existing = CSVHandler.findStudent(fn + " " + ln);
-           if (existing != null) {
-               JOptionPane.showMessageDialog(this, "Student already exists.");
-               return;
-           }
-
-
-           CSVHandler.addStudent(new Student(fn, ln, 0));
-           loadStudentNames();
+           DataAccess.run(this, addBtn, () -> CSVHandler.addStudent(new Student(fn, ln, 0, school, className)), added -> {
+               if (!added) {
+                   JOptionPane.showMessageDialog(this, "Student already exists.");
+                   return;
+               }
 
 
-           firstNameField.setText("");
-           lastNameField.setText("");
+               firstNameField.setText("");
+               lastNameField.setText("");
+           });
        }
 
 
-       private void loadStudentNames() {
-           studentListModel.clear();
-           for (Student s : CSVHandler.loadAll()) {
-               studentListModel.addElement(s.getFullName());
-           }
+       // Rows from before partitioning belong to no class. The teacher picks which of them are
+       // theirs; the rest stay unassigned for the other teachers to claim.
+       private void claimUnassigned(JButton claimBtn) {
+           DataAccess.run(this, claimBtn, CSVHandler::unassignedNames, names -> {
+               if (names.isEmpty()) {
+                   JOptionPane.showMessageDialog(this, "There are no unassigned students.");
+                   return;
+               }
+               JList<String> choices = new JList<>(names.toArray(new String[0]));
+               choices.setPrototypeCellValue("Wwwwwwwwwwwwwww Wwwwwwwwwwwwwwwwwwww");
+               choices.setVisibleRowCount(15);
+               choices.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+               int confirm = JOptionPane.showConfirmDialog(
+                       this,
+                       new Object[] {"Select the students in your class (Ctrl/Shift-click for several):", new JScrollPane(choices)},
+                       "Claim Unassigned Students",
+                       JOptionPane.OK_CANCEL_OPTION
+               );
+               List<String> selected = choices.getSelectedValuesList();
+               if (confirm != JOptionPane.OK_OPTION || selected.isEmpty()) return;
+               DataAccess.run(this, claimBtn, () -> CSVHandler.claimUnassigned(selected, school, className),
+                       moved -> JOptionPane.showMessageDialog(this, "Moved " + moved + " students into this class."));
+           });
        }
 
 
        private void showStudentProfile(String fullName) {
            currentSelectedStudent = fullName;
-           Student s = CSVHandler.findStudent(fullName);
+           DataAccess.run(this, () -> {
+               Student s = CSVHandler.findStudent(fullName);
+               return s == null ? null : new Student(s.firstName, s.lastName, s.points);
+           }, s -> {
+               if (s == null || !fullName.equals(currentSelectedStudent)) return;
 
 
-           if (s == null) return;
+               profileLabel.setText("Name: " + s.getFullName());
+               pointsLabel.setText("Points: " + s.points);
+               raffleLabel.setText("Raffle Eligible: " + (s.isRaffleEligible() ? "YES" : "NO"));
+           });
+       }
 
 
-           profileLabel.setText("Name: " + s.getFullName());
-           pointsLabel.setText("Points: " + s.points);
-           raffleLabel.setText("Raffle Eligible: " + (s.points > 50 ? "YES" : "NO"));
+       // The leaderboard and raffle lists follow the store through their shared view models; this
+       // only pulls in awards other processes have made since the last look.
+       private void syncStore() {
+           DataAccess.IO.execute(() -> StudentStore.get().sync());
        }
+   }
 
 
-       private void refreshLeaderboardAndRaffle() {
-           leaderboardModel.clear();
-           for (Student s : CSVHandler.top3()) {
-               leaderboardModel.addElement(s.getFullName() + " - " + s.points + " pts");
-           }
+   // -------------------- DIAGNOSTICS WINDOW --------------------
 
 
-           raffleModel.clear();
-           for (Student s : CSVHandler.raffleEligible()) {
-               raffleModel.addElement(s.getFullName() + " - " + s.points + " pts");
-           }
+   // The Metrics report, refreshed once a second while the window is open.
+   static class DiagnosticsWindow extends JFrame {
+       private static DiagnosticsWindow instance; // EDT only
+
+
+       private final JTextArea report = new JTextArea(24, 80);
+       private final javax.swing.Timer refresh = new javax.swing.Timer(1000, e -> update());
+
+
+       static void open() {
+           if (instance == null) instance = new DiagnosticsWindow();
+           instance.toFront();
+       }
+
+
+       private DiagnosticsWindow() {
+           setTitle("Diagnostics");
+           setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+           setLayout(new BorderLayout());
+
+
+           report.setEditable(false);
+           report.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+           add(new JScrollPane(report), BorderLayout.CENTER);
+
+
+           JPanel buttons = new JPanel();
+           JButton resetBtn = new JButton("Reset");
+           resetBtn.setEnabled(Metrics.ENABLED);
+           resetBtn.addActionListener(e -> {
+               Metrics.reset();
+               update();
+           });
+           buttons.add(resetBtn);
+           add(buttons, BorderLayout.SOUTH);
+
+
+           addWindowListener(new WindowAdapter() {
+               @Override
+               public void windowClosed(WindowEvent e) {
+                   refresh.stop();
+                   instance = null;
+               }
+           });
+
+
+           update();
+           if (Metrics.ENABLED) refresh.start();
+           pack();
+           setVisible(true);
+       }
+
+
+       private void update() {
+           report.setText(Metrics.ENABLED ? Metrics.report()
+                   : "Metrics are off. Start with -Drewards.metrics=true (or set it in rewards.properties).");
        }
    }
 
@@ -687,13 +5986,17 @@ public class classroomRewardsTracker {
                    JOptionPane.showMessageDialog(this, "Username must end with .student");
                    return;
                }
-               Profile p = ProfileHandler.findByUsernameAndRole(username, "student");
-               if (p == null) {
-                   JOptionPane.showMessageDialog(this, "Student profile not found.");
-                   return;
-               }
-               dispose();
-               new StudentProfile(p.fullName);
+               DataAccess.run(this, loginBtn, () -> {
+                   StudentStore.get().sync();
+                   return ProfileHandler.findByUsernameAndRole(username, "student");
+               }, p -> {
+                   if (p == null) {
+                       JOptionPane.showMessageDialog(this, "Student profile not found.");
+                       return;
+                   }
+                   dispose();
+                   new StudentProfile(p.fullName);
+               });
            });
 
 
@@ -715,35 +6018,46 @@ public class classroomRewardsTracker {
    }
 
 
-   // -------------------- STUDENT PROFILE --------------------
+   // -------------------- PROFILE WINDOW --------------------
 
 
-   static class StudentProfile extends JFrame {
+   // What a student or their parent sees: the detail rows plus the class top 3 and raffle list.
+   // The two windows differ only in their title and the caption of the name row.
+   static class ProfileWindow extends JFrame {
 
 
-       DefaultListModel<String> leaderboardModel = new DefaultListModel<>();
-       DefaultListModel<String> raffleModel = new DefaultListModel<>();
+       final String fullName;
+       final String nameCaption;
+       String partition; // partition key of the student's class; null while the student is not found
+       JLabel[] rows;
 
 
-       public StudentProfile(String fullName) {
-           setTitle("Student Profile");
-           setSize(600, 400);
-           setLayout(new BorderLayout());
+       JList<String> leaderboardList = new JList<>();
+       JList<String> raffleList = new JList<>();
+       LeaderboardViewModel board;
 
 
-           Student s = CSVHandler.findStudent(fullName);
+       private final ChangeBus.Listener onChange = this::storeChanged;
+       private boolean computing;
+       private boolean stale;
+       private boolean closed;
 
 
-           JPanel centerPanel = new JPanel(new GridLayout(3, 1));
-           if (s == null) {
-               centerPanel.add(new JLabel("Student not found", SwingConstants.CENTER));
-           } else {
-               centerPanel.add(new JLabel("Name: " + s.getFullName(), SwingConstants.CENTER));
-               centerPanel.add(new JLabel("Points: " + s.points, SwingConstants.CENTER));
-               centerPanel.add(new JLabel("Raffle Eligible: " + (s.points > 50 ? "YES" : "NO"), SwingConstants.CENTER));
-           }
+       ProfileWindow(String title, String nameCaption, String fullName) {
+           this.fullName = fullName;
+           this.nameCaption = nameCaption;
+           setTitle(title);
+           setSize(600, 480);
+           setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+           setLayout(new BorderLayout());
 
 
+           JPanel centerPanel = new JPanel(new GridLayout(8, 1));
+           rows = new JLabel[8];
+           for (int i = 0; i < rows.length; i++) {
+               rows[i] = new JLabel("", SwingConstants.CENTER);
+               centerPanel.add(rows[i]);
+           }
            add(centerPanel, BorderLayout.CENTER);
 
 
@@ -751,14 +6065,12 @@ public class classroomRewardsTracker {
 
 
            JPanel leaderboardPanel = new JPanel(new BorderLayout());
-           leaderboardPanel.add(new JLabel("Top 3 Students:"), BorderLayout.NORTH);
-           JList<String> leaderboardList = new JList<>(leaderboardModel);
+           leaderboardPanel.add(new JLabel("Top 3 in Class:"), BorderLayout.NORTH);
            leaderboardPanel.add(new JScrollPane(leaderboardList), BorderLayout.CENTER);
 
 
            JPanel rafflePanel = new JPanel(new BorderLayout());
            rafflePanel.add(new JLabel("Raffle Eligible:"), BorderLayout.NORTH);
-           JList<String> raffleList = new JList<>(raffleModel);
            rafflePanel.add(new JScrollPane(raffleList), BorderLayout.CENTER);
 
 
@@ -769,7 +6081,19 @@ public class classroomRewardsTracker {
            add(bottomPanel, BorderLayout.SOUTH);
 
 
-           refreshLeaderboardAndRaffle();
+           refresh();
+
+
+           // Awards made anywhere in this process show up here within a frame.
+           ChangeBus.subscribe(onChange);
+           addWindowListener(new WindowAdapter() {
+               @Override
+               public void windowClosed(WindowEvent e) {
+                   closed = true;
+                   ChangeBus.unsubscribe(onChange);
+                   if (board != null) board.release();
+               }
+           });
 
 
            setLocationRelativeTo(null);
@@ -777,17 +6101,132 @@ public class classroomRewardsTracker {
        }
 
 
-       private void refreshLeaderboardAndRaffle() {
-           leaderboardModel.clear();
-           for (Student s : CSVHandler.top3()) {
-               leaderboardModel.addElement(s.getFullName() + " - " + s.points + " pts");
+       // Only changes to this student's class can move its points, rank, top 3 or raffle list.
+       private void storeChanged(StoreChange change) {
+           if (change.affects(StudentStore.key(fullName), partition)) refresh();
+       }
+
+
+       // The store calls run on DataAccess.IO, one pass at a time; changes that arrive meanwhile
+       // trigger one more.
+       private void refresh() {
+           if (computing) {
+               stale = true;
+               return;
+           }
+           computing = true;
+           DataAccess.IO.execute(() -> {
+               Details details = null;
+               try {
+                   details = details(fullName, nameCaption);
+               } catch (Exception e) {
+                   e.printStackTrace();
+               }
+               Details loaded = details;
+               SwingUtilities.invokeLater(() -> detailsLoaded(loaded));
+           });
+       }
+
+
+       // A failed pass hands over null, so the rows keep what they showed.
+       private void detailsLoaded(Details details) {
+           computing = false;
+           if (closed) return;
+           if (details != null) {
+               String shown = partition;
+               partition = details.partition;
+               for (int i = 0; i < rows.length; i++) {
+                   rows[i].setText(details.texts[i]);
+               }
+               if (board == null || !Objects.equals(shown, partition)) showBoard(details.student);
+           }
+           if (stale) {
+               stale = false;
+               refresh();
+           }
+       }
+
+
+       // The student's own class, or everyone if the student was not found. Called again only
+       // when the student moves class; the shared model keeps the lists current on its own.
+       private void showBoard(Student s) {
+           if (board != null) board.release();
+           board = s == null ? LeaderboardViewModel.forEveryone() : LeaderboardViewModel.forClass(s.school, s.className);
+           leaderboardList.setModel(board.top);
+           raffleList.setModel(board.raffle);
+       }
+
+
+       // What the detail rows show for one student.
+       static class Details {
+           final Student student;   // null if the student does not exist
+           final String partition;  // partition key of the student's class, or null
+           final String[] texts;
+
+
+           Details(Student student, String partition, String[] texts) {
+               this.student = student;
+               this.partition = partition;
+               this.texts = texts;
+           }
+       }
+
+
+       // Name, points, class rank, raffle, this week (from Monday), this term (Settings.termStart),
+       // the term's points per category and the last few awards. All store calls, so keep it off
+       // the EDT.
+       static Details details(String fullName, String nameCaption) {
+           String[] texts = new String[8];
+           Student s = CSVHandler.findStudent(fullName);
+           if (s == null) {
+               texts[0] = "Student not found";
+               Arrays.fill(texts, 1, texts.length, "");
+               return new Details(null, null, texts);
+           }
+
+
+           fullName = s.getFullName();
+           texts[0] = nameCaption + fullName;
+           texts[1] = "Points: " + s.points;
+           texts[2] = "Class rank: #" + CSVHandler.rank(fullName) + " of " + CSVHandler.classSize(fullName);
+           texts[3] = "Raffle Eligible: " + (s.isRaffleEligible() ? "YES" : "NO");
+
+
+           LocalDate today = LocalDate.now();
+           LocalDate weekStart = today.minusDays(today.getDayOfWeek().getValue() - 1);
+           LocalDate termStart = Settings.termStart();
+           texts[4] = "This week: " + CSVHandler.pointsSince(fullName, weekStart) + " pts";
+           texts[5] = "This term: " + CSVHandler.pointsSince(fullName, termStart) + " pts";
+
+
+           StringBuilder byCategory = new StringBuilder();
+           for (Map.Entry<String, Integer> e : CSVHandler.categoryPointsSince(fullName, termStart).entrySet()) {
+               if (byCategory.length() > 0) byCategory.append(", ");
+               byCategory.append(e.getKey()).append(" ").append(e.getValue());
            }
+           texts[6] = "Term by category: " + (byCategory.length() == 0 ? "none yet" : byCategory);
 
 
-           raffleModel.clear();
-           for (Student s : CSVHandler.raffleEligible()) {
-               raffleModel.addElement(s.getFullName() + " - " + s.points + " pts");
+           StringBuilder recent = new StringBuilder();
+           for (Award a : CSVHandler.recentAwards(fullName, 3)) {
+               if (recent.length() > 0) recent.append(", ");
+               LocalDate day = Instant.ofEpochMilli(a.timestamp).atZone(ZoneId.systemDefault()).toLocalDate();
+               recent.append(a.delta >= 0 ? "+" : "").append(a.delta).append(" ").append(a.category)
+                       .append(" (").append(day.getMonth().getDisplayName(TextStyle.SHORT, Locale.getDefault()))
+                       .append(" ").append(day.getDayOfMonth()).append(")");
            }
+           texts[7] = "Latest awards: " + (recent.length() == 0 ? "none yet" : recent);
+           return new Details(s, StudentStore.partitionKey(s.school, s.className), texts);
+       }
+   }
+
+
+   // -------------------- STUDENT PROFILE --------------------
+
+
+   static class StudentProfile extends ProfileWindow {
+       public StudentProfile(String fullName) {
+           super("Student Profile", "Name: ", fullName);
        }
    }
 
@@ -823,15 +6262,19 @@ public class classroomRewardsTracker {
                }
 
 
-               Profile p = ProfileHandler.findParentForStudent(username, studentName);
-               if (p == null) {
-                   JOptionPane.showMessageDialog(this, "Parent profile or linked student not found.");
-                   return;
-               }
+               DataAccess.run(this, loginBtn, () -> {
+                   StudentStore.get().sync();
+                   return ProfileHandler.findParentForStudent(username, studentName);
+               }, p -> {
+                   if (p == null) {
+                       JOptionPane.showMessageDialog(this, "Parent profile or linked student not found.");
+                       return;
+                   }
 
 
-               dispose();
-               new ParentProfile(studentName);
+                   dispose();
+                   new ParentProfile(studentName);
+               });
            });
 
 
@@ -858,76 +6301,9 @@ public class classroomRewardsTracker {
    // -------------------- PARENT PROFILE --------------------
 
 
-   static class ParentProfile extends JFrame {
-
-
-       DefaultListModel<String> leaderboardModel = new DefaultListModel<>();
-       DefaultListModel<String> raffleModel = new DefaultListModel<>();
-
-
+   static class ParentProfile extends ProfileWindow {
        public ParentProfile(String fullName) {
-           setTitle("Parent View");
-           setSize(600, 400);
-           setLayout(new BorderLayout());
-
-
-           Student s = CSVHandler.findStudent(fullName);
-
-
-           JPanel centerPanel = new JPanel(new GridLayout(3, 1));
-           if (s == null) {
-               centerPanel.add(new JLabel("Student not found", SwingConstants.CENTER));
-           } else {
-               centerPanel.add(new JLabel("Student: " + s.getFullName(), SwingConstants.CENTER));
-               centerPanel.add(new JLabel("Points: " + s.points, SwingConstants.CENTER));
-               centerPanel.add(new JLabel("Raffle Eligible: " + (s.points > 50 ? "YES" : "NO"), SwingConstants.CENTER));
-           }
-
-
-           add(centerPanel, BorderLayout.CENTER);
-
-
-           JPanel bottomPanel = new JPanel(new GridLayout(1, 2));
-
-
-           JPanel leaderboardPanel = new JPanel(new BorderLayout());
-           leaderboardPanel.add(new JLabel("Top 3 Students:"), BorderLayout.NORTH);
-           JList<String> leaderboardList = new JList<>(leaderboardModel);
-           leaderboardPanel.add(new JScrollPane(leaderboardList), BorderLayout.CENTER);
-
-
-           JPanel rafflePanel = new JPanel(new BorderLayout());
-           rafflePanel.add(new JLabel("Raffle Eligible:"), BorderLayout.NORTH);
-           JList<String> raffleList = new JList<>(raffleModel);
-           rafflePanel.add(new JScrollPane(raffleList), BorderLayout.CENTER);
-
-
-           bottomPanel.add(leaderboardPanel);
-           bottomPanel.add(rafflePanel);
-
-
-           add(bottomPanel, BorderLayout.SOUTH);
-
-
-           refreshLeaderboardAndRaffle();
-
-
-           setLocationRelativeTo(null);
-           setVisible(true);
-       }
-
-
-       private void refreshLeaderboardAndRaffle() {
-           leaderboardModel.clear();
-           for (Student s : CSVHandler.top3()) {
-               leaderboardModel.addElement(s.getFullName() + " - " + s.points + " pts");
-           }
-
-
-           raffleModel.clear();
-           for (Student s : CSVHandler.raffleEligible()) {
-               raffleModel.addElement(s.getFullName() + " - " + s.points + " pts");
-           }
+           super("Parent View", "Student: ", fullName);
        }
    }
 }
@@ -0,0 +1,101 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+// The ledger files live in rewards.dataDir, which the build points at target/test-data.
+class AwardLedgerTest {
+
+
+   @BeforeEach
+   void clear() {
+       new File(classroomRewardsTracker.AwardLedger.FILE).delete();
+       new File(classroomRewardsTracker.AwardLedger.HISTORY_FILE).delete();
+   }
+
+
+   @Test
+   void appendedAwardsReadBackInOrder() {
+       classroomRewardsTracker.AwardLedger.append(Arrays.asList(
+               award(1, "ann lee", 5, "Teamwork"),
+               award(2, "o'neil, \"bo\"", -3, "General"),
+               award(3, "line\nbreak", 7, "On Task")));
+
+
+       List<classroomRewardsTracker.Award> read = classroomRewardsTracker.AwardLedger.readFrom(0);
+       assertEquals(3, read.size());
+       assertAward(read.get(0), 1, "ann lee", 5, "Teamwork");
+       assertAward(read.get(1), 2, "o'neil, \"bo\"", -3, "General");
+       assertAward(read.get(2), 3, "line\nbreak", 7, "On Task");
+   }
+
+
+   @Test
+   void readFromOffsetSkipsEarlierRows() {
+       classroomRewardsTracker.AwardLedger.append(award(1, "a", 1, "General"));
+       long offset = classroomRewardsTracker.AwardLedger.size();
+       classroomRewardsTracker.AwardLedger.append(award(2, "b", 2, "General"));
+
+
+       List<classroomRewardsTracker.Award> read = classroomRewardsTracker.AwardLedger.readFrom(offset);
+       assertEquals(1, read.size());
+       assertAward(read.get(0), 2, "b", 2, "General");
+   }
+
+
+   @Test
+   void tornLastRowIsSkipped() throws IOException {
+       classroomRewardsTracker.AwardLedger.append(award(1, "a", 1, "General"));
+       try (FileWriter out = new FileWriter(classroomRewardsTracker.AwardLedger.FILE, StandardCharsets.UTF_8, true)) {
+           out.write("2,1700000000000,4");
+       }
+
+
+       List<classroomRewardsTracker.Award> read = classroomRewardsTracker.AwardLedger.readFrom(0);
+       assertEquals(1, read.size());
+       assertAward(read.get(0), 1, "a", 1, "General");
+   }
+
+
+   @Test
+   void archiveMovesRowsToHistoryAndEndsATornRow() throws IOException {
+       classroomRewardsTracker.AwardLedger.append(award(1, "a", 1, "General"));
+       try (FileWriter out = new FileWriter(classroomRewardsTracker.AwardLedger.FILE, StandardCharsets.UTF_8, true)) {
+           out.write("2,1700000000000,4");
+       }
+       long end = classroomRewardsTracker.AwardLedger.archive();
+       new File(classroomRewardsTracker.AwardLedger.FILE).delete();
+       classroomRewardsTracker.AwardLedger.append(award(3, "b", 3, "General"));
+       assertEquals(end + classroomRewardsTracker.AwardLedger.size(), classroomRewardsTracker.AwardLedger.archive());
+
+
+       List<classroomRewardsTracker.Award> history = new ArrayList<>();
+       classroomRewardsTracker.AwardLedger.readHistory(0, history::add);
+       assertEquals(2, history.size());
+       assertAward(history.get(0), 1, "a", 1, "General");
+       assertAward(history.get(1), 3, "b", 3, "General");
+   }
+
+
+   private static classroomRewardsTracker.Award award(long seq, String key, int delta, String category) {
+       return new classroomRewardsTracker.Award(seq, 1_700_000_000_000L + seq, key, delta, category);
+   }
+
+
+   private static void assertAward(classroomRewardsTracker.Award a, long seq, String key, int delta, String category) {
+       assertEquals(seq, a.seq);
+       assertEquals(1_700_000_000_000L + seq, a.timestamp);
+       assertEquals(key, a.key);
+       assertEquals(delta, a.delta);
+       assertEquals(category, a.category);
+   }
+}
@@ -0,0 +1,133 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class BinaryRosterTest {
+
+
+   @TempDir
+   Path dir;
+
+
+   @Test
+   void roundTripKeepsStudentsAndStamps() throws IOException {
+       List<classroomRewardsTracker.Student> list = Arrays.asList(
+               new classroomRewardsTracker.Student("Zoë", "Ødegård", 12, "North", "msmith.teacher"),
+               new classroomRewardsTracker.Student("Ann", "Lee", -4, "North", "msmith.teacher"),
+               new classroomRewardsTracker.Student("Bo", "Lee", Integer.MAX_VALUE, "", ""));
+       String file = file("students.bin");
+       classroomRewardsTracker.BinaryRoster.write(file, list, 77, 1234567890123L);
+
+
+       classroomRewardsTracker.Snapshot read = classroomRewardsTracker.BinaryRoster.read(file);
+       assertEquals(77, read.ledgerSeq);
+       assertEquals(1234567890123L, read.version);
+       assertEquals(1234567890123L, classroomRewardsTracker.BinaryRoster.readVersion(file));
+       assertStudents(list, read.students);
+   }
+
+
+   @Test
+   void emptyRosterRoundTrips() throws IOException {
+       String file = file("students.bin");
+       classroomRewardsTracker.BinaryRoster.write(file, new ArrayList<>(), 0, 1);
+       classroomRewardsTracker.Snapshot read = classroomRewardsTracker.BinaryRoster.read(file);
+       assertTrue(read.students.isEmpty());
+       assertEquals(1, read.version);
+   }
+
+
+   @Test
+   void everyFlippedByteFailsTheChecksum() throws IOException {
+       String file = file("students.bin");
+       classroomRewardsTracker.BinaryRoster.write(file, Arrays.asList(new classroomRewardsTracker.Student("Ann", "Lee", 3)), 1, 2);
+       byte[] good = Files.readAllBytes(Path.of(file));
+       for (int i = 0; i < good.length; i++) {
+           byte[] bad = good.clone();
+           bad[i] ^= 0x10;
+           Files.write(Path.of(file), bad);
+           assertThrows(IOException.class, () -> classroomRewardsTracker.BinaryRoster.read(file), "byte " + i);
+       }
+   }
+
+
+   @Test
+   void truncatedOrForeignFilesAreRejected() throws IOException {
+       String file = file("students.bin");
+       classroomRewardsTracker.BinaryRoster.write(file, Arrays.asList(new classroomRewardsTracker.Student("Ann", "Lee", 3)), 1, 2);
+       byte[] good = Files.readAllBytes(Path.of(file));
+       Files.write(Path.of(file), Arrays.copyOf(good, good.length - 3));
+       assertThrows(IOException.class, () -> classroomRewardsTracker.BinaryRoster.read(file));
+       Files.write(Path.of(file), new byte[10]);
+       assertThrows(IOException.class, () -> classroomRewardsTracker.BinaryRoster.read(file));
+       Files.writeString(Path.of(file), "first,last,points\nAnn,Lee,3\nBo,Lee,4\nCy,Lee,5\n");
+       assertThrows(IOException.class, () -> classroomRewardsTracker.BinaryRoster.read(file));
+       assertEquals(0, classroomRewardsTracker.BinaryRoster.readVersion(file));
+   }
+
+
+   // The next snapshot write would replace every student, so a roster that cannot be read must
+   // stop the load and stay on disk as it was.
+   @Test
+   void corruptRosterThrowsAndIsLeftUntouched() throws IOException {
+       String file = file("students.bin");
+       classroomRewardsTracker.BinaryRoster.write(file, Arrays.asList(new classroomRewardsTracker.Student("Ann", "Lee", 3)), 1, 2);
+       byte[] bad = Files.readAllBytes(Path.of(file));
+       bad[bad.length - 1] ^= 1;
+       Files.write(Path.of(file), bad);
+
+
+       assertThrows(IllegalStateException.class, () -> classroomRewardsTracker.CSVHandler.readFile(file));
+       assertArrayEquals(bad, Files.readAllBytes(Path.of(file)));
+   }
+
+
+   @Test
+   void missingRosterReadsAsEmpty() {
+       classroomRewardsTracker.Snapshot read = classroomRewardsTracker.CSVHandler.readFile(file("none.bin"));
+       assertTrue(read.students.isEmpty());
+       assertEquals(0, read.version);
+   }
+
+
+   @Test
+   void csvRosterRoundTripsTheSameStudents() {
+       List<classroomRewardsTracker.Student> list = Arrays.asList(
+               new classroomRewardsTracker.Student("Ann", "Lee, Jr", 5, "North", "msmith.teacher"),
+               new classroomRewardsTracker.Student("Bo", "\"B\"", 0));
+       String file = file("students.csv");
+       classroomRewardsTracker.CSVHandler.writeFile(file, list, 9, 10);
+       classroomRewardsTracker.Snapshot read = classroomRewardsTracker.CSVHandler.readFile(file);
+       assertEquals(9, read.ledgerSeq);
+       assertEquals(10, read.version);
+       assertStudents(list, read.students);
+   }
+
+
+   private String file(String name) {
+       return dir.resolve(name).toString();
+   }
+
+
+   private static void assertStudents(List<classroomRewardsTracker.Student> expected, List<classroomRewardsTracker.Student> actual) {
+       assertEquals(expected.size(), actual.size());
+       for (int i = 0; i < expected.size(); i++) {
+           classroomRewardsTracker.Student e = expected.get(i);
+           classroomRewardsTracker.Student a = actual.get(i);
+           assertEquals(e.firstName, a.firstName);
+           assertEquals(e.lastName, a.lastName);
+           assertEquals(e.points, a.points);
+           assertEquals(e.school, a.school);
+           assertEquals(e.className, a.className);
+       }
+   }
+}
@@ -0,0 +1,177 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class CsvReaderTest {
+
+
+   @Test
+   void quotedFieldsKeepCommasQuotesAndLineBreaks() throws IOException {
+       String text = "\"Lee, Ann\",\"say \"\"hi\"\"\",\"two\nlines\"\n"
+               + "plain,,\"\"\n";
+       List<List<String>> rows = rows(new StringReader(text));
+       assertEquals(Arrays.asList(
+               Arrays.asList("Lee, Ann", "say \"hi\"", "two\nlines"),
+               Arrays.asList("plain", "", "")), rows);
+   }
+
+
+   @Test
+   void blankLinesAndCrlfAreSkipped() throws IOException {
+       classroomRewardsTracker.CsvReader csv = new classroomRewardsTracker.CsvReader(new StringReader("\r\n\na,b\r\n\r\n\"c\nd\",e\n\nf"));
+       assertTrue(csv.nextRow());
+       assertEquals(3, csv.lineNumber());
+       assertEquals("a", csv.nextField());
+       assertEquals("b", csv.nextField());
+       assertFalse(csv.hasField());
+       assertNull(csv.nextField());
+       assertTrue(csv.nextRow());
+       assertEquals(5, csv.lineNumber());
+       assertEquals("c\nd", csv.nextField());
+       assertTrue(csv.nextRow());
+       assertEquals(8, csv.lineNumber());
+       assertEquals("f", csv.nextField());
+       assertFalse(csv.nextRow());
+   }
+
+
+   @Test
+   void trailingCommaEndsWithAnEmptyField() throws IOException {
+       assertEquals(Arrays.asList(Arrays.asList("a", "")), rows(new StringReader("a,\n")));
+   }
+
+
+   @Test
+   void nextRowSkipsWhatIsLeftOfTheRow() throws IOException {
+       classroomRewardsTracker.CsvReader csv = new classroomRewardsTracker.CsvReader(new StringReader("a,\"b,\nb\",c\nd\n"));
+       assertTrue(csv.nextRow());
+       assertEquals("a", csv.nextField());
+       assertTrue(csv.nextRow());
+       assertEquals("d", csv.nextField());
+       assertFalse(csv.nextRow());
+   }
+
+
+   @Test
+   void numbersParseStraightFromTheBuffer() throws IOException {
+       classroomRewardsTracker.CsvReader csv = new classroomRewardsTracker.CsvReader(new StringReader("12,-7,+3,\"42\",9223372036854775807,x\n"));
+       assertTrue(csv.nextRow());
+       assertEquals(12, csv.nextInt());
+       assertEquals(-7, csv.nextInt());
+       assertEquals(3, csv.nextInt());
+       assertEquals(42, csv.nextInt());
+       assertEquals(Long.MAX_VALUE, csv.nextLong());
+       assertEquals("x", csv.nextField());
+   }
+
+
+   @Test
+   void badNumbersThrowAndSkipTheField() throws IOException {
+       classroomRewardsTracker.CsvReader csv = new classroomRewardsTracker.CsvReader(new StringReader("12x,,2147483648,9223372036854775808,5\n"));
+       assertTrue(csv.nextRow());
+       assertThrows(NumberFormatException.class, csv::nextInt);
+       assertThrows(NumberFormatException.class, csv::nextInt);
+       assertThrows(NumberFormatException.class, csv::nextInt);
+       assertThrows(NumberFormatException.class, csv::nextLong);
+       assertEquals(5, csv.nextInt());
+       assertThrows(NumberFormatException.class, csv::nextInt);
+   }
+
+
+   // A reader that hands out a few chars at a time puts a buffer boundary inside every field.
+   @Test
+   void fieldsSplitAcrossReadsMatchOneRead() throws IOException {
+       String text = "first,last,points\n\"Lee, Ann\",\"O\"\"Neil\",123456\nBo,\"multi\nline\",-9\n";
+       List<List<String>> whole = rows(new StringReader(text));
+       for (int chunk = 1; chunk <= 7; chunk++) {
+           assertEquals(whole, rows(new ChunkedReader(text, chunk)), "chunk " + chunk);
+       }
+
+
+       classroomRewardsTracker.CsvReader csv = new classroomRewardsTracker.CsvReader(new ChunkedReader("123456,-789\n", 1));
+       assertTrue(csv.nextRow());
+       assertEquals(123456, csv.nextInt());
+       assertEquals(-789, csv.nextInt());
+   }
+
+
+   @Test
+   void fieldsStraddlingTheBufferEnd() throws IOException {
+       int bufferSize = 1 << 16;
+       StringBuilder text = new StringBuilder();
+       while (text.length() < bufferSize - 6) text.append("x,");
+       text.setLength(bufferSize - 6);
+       text.append("\n\"ab,\"\"cd\",1234567,tail\n");
+
+
+       classroomRewardsTracker.CsvReader csv = new classroomRewardsTracker.CsvReader(new StringReader(text.toString()));
+       assertTrue(csv.nextRow());
+       assertTrue(csv.nextRow());
+       assertEquals("ab,\"cd", csv.nextField());
+       assertEquals(1234567, csv.nextInt());
+       assertEquals("tail", csv.nextField());
+       assertFalse(csv.nextRow());
+       assertEquals(text.length(), csv.charsRead());
+   }
+
+
+   @Test
+   void escapeRoundTrips() throws IOException {
+       String[] values = {"plain", "a,b", "say \"hi\"", "two\nlines", "cr\rhere", ""};
+       StringBuilder line = new StringBuilder();
+       for (String v : values) {
+           if (line.length() > 0) line.append(',');
+           line.append(classroomRewardsTracker.CsvReader.escape(v));
+       }
+       assertEquals("plain", classroomRewardsTracker.CsvReader.escape("plain"));
+       assertEquals(Arrays.asList(Arrays.asList(values)), rows(new StringReader(line + "\n")));
+   }
+
+
+   private static List<List<String>> rows(Reader in) throws IOException {
+       classroomRewardsTracker.CsvReader csv = new classroomRewardsTracker.CsvReader(in);
+       List<List<String>> rows = new ArrayList<>();
+       while (csv.nextRow()) {
+           List<String> row = new ArrayList<>();
+           while (csv.hasField()) row.add(csv.nextField());
+           rows.add(row);
+       }
+       return rows;
+   }
+
+
+   private static class ChunkedReader extends Reader {
+       private final String text;
+       private final int chunk;
+       private int pos;
+
+
+       ChunkedReader(String text, int chunk) {
+           this.text = text;
+           this.chunk = chunk;
+       }
+
+
+       @Override
+       public int read(char[] cbuf, int off, int len) {
+           if (pos == text.length()) return -1;
+           int n = Math.min(Math.min(len, chunk), text.length() - pos);
+           text.getChars(pos, pos + n, cbuf, off);
+           pos += n;
+           return n;
+       }
+
+
+       @Override
+       public void close() {
+       }
+   }
+}
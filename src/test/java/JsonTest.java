@@ -0,0 +1,87 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class JsonTest {
+
+
+   @Test
+   void parsesEveryKindOfValue() {
+       Map<String, Object> expected = new LinkedHashMap<>();
+       expected.put("name", "Ann Lee");
+       expected.put("points", 5.0);
+       expected.put("ratio", -1.5e3);
+       expected.put("ok", true);
+       expected.put("no", false);
+       expected.put("none", null);
+       expected.put("list", Arrays.asList(1.0, "two", Collections.emptyMap(), Collections.emptyList()));
+       assertEquals(expected, classroomRewardsTracker.Json.parse(
+               " { \"name\" : \"Ann Lee\", \"points\":5, \"ratio\":-1.5e3, \"ok\":true, \"no\":false,"
+                       + " \"none\":null, \"list\":[1,\"two\",{},[]] } "));
+   }
+
+
+   @Test
+   void stringEscapes() {
+       assertEquals("a\"b\\c/d\n\r\t\b\f\u00e9\u0001",
+               classroomRewardsTracker.Json.parse("\"a\\\"b\\\\c\\/d\\n\\r\\t\\b\\f\\u00e9\\u0001\""));
+   }
+
+
+   @Test
+   void quoteRoundTrips() {
+       for (String s : new String[] {"", "plain", "say \"hi\"", "back\\slash", "tab\tnew\nline\r", "\u0000\u001f", "Zoë \uD83D\uDE00"}) {
+           assertEquals(s, classroomRewardsTracker.Json.parse(classroomRewardsTracker.Json.quote(s)), s);
+       }
+   }
+
+
+   @Test
+   void studentsOutputParsesBack() {
+       List<classroomRewardsTracker.Student> list = Arrays.asList(
+               new classroomRewardsTracker.Student("Ann", "O\"Lee", 5), new classroomRewardsTracker.Student("Bo", "Lee", -2));
+       Map<String, Object> first = new LinkedHashMap<>();
+       first.put("name", "Ann O\"Lee");
+       first.put("points", 5.0);
+       Map<String, Object> second = new LinkedHashMap<>();
+       second.put("name", "Bo Lee");
+       second.put("points", -2.0);
+       assertEquals(Arrays.asList(first, second), classroomRewardsTracker.Json.parse(classroomRewardsTracker.Json.students(list)));
+       assertEquals(Collections.emptyList(), classroomRewardsTracker.Json.parse(classroomRewardsTracker.Json.students(Collections.emptyList())));
+   }
+
+
+   @Test
+   void malformedInputThrowsIllegalArgument() {
+       String[] bad = {"", " ", "{", "[1,]", "[1 2]", "{\"a\" 1}", "{a:1}", "{\"a\":1,}", "\"abc", "\"\\u12\"", "\"\\uzzzz\"",
+               "01x", "1 2", "-", "tru", "nul", "[true false]", "}"};
+       for (String text : bad) {
+           assertThrows(IllegalArgumentException.class, () -> classroomRewardsTracker.Json.parse(text), text);
+       }
+   }
+
+
+   // Request bodies come from the network, so nesting is capped instead of recursing until the
+   // stack overflows.
+   @Test
+   void nestingIsCappedAtMaxDepth() {
+       int max = classroomRewardsTracker.Json.MAX_DEPTH;
+       assertEquals(Collections.emptyList(), unwrap(classroomRewardsTracker.Json.parse("[".repeat(max) + "]".repeat(max)), max - 1));
+       assertThrows(IllegalArgumentException.class, () -> classroomRewardsTracker.Json.parse("[".repeat(max + 1) + "]".repeat(max + 1)));
+       assertThrows(IllegalArgumentException.class, () -> classroomRewardsTracker.Json.parse("{\"a\":".repeat(max + 1) + "1" + "}".repeat(max + 1)));
+       assertThrows(IllegalArgumentException.class, () -> classroomRewardsTracker.Json.parse("[".repeat(1_000_000)));
+   }
+
+
+   private static Object unwrap(Object value, int levels) {
+       for (int i = 0; i < levels; i++) value = ((List<?>) value).get(0);
+       return value;
+   }
+}
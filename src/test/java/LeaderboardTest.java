@@ -0,0 +1,114 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class LeaderboardTest {
+
+
+   @Test
+   void orderIsPointsThenLastThenFirstName() {
+       classroomRewardsTracker.Student a = student("Ann", "Lee", 5);
+       classroomRewardsTracker.Student b = student("bo", "lee", 5);
+       classroomRewardsTracker.Student c = student("Cy", "Abel", 5);
+       classroomRewardsTracker.Student d = student("Di", "Zed", 9);
+       classroomRewardsTracker.Leaderboard board = new classroomRewardsTracker.Leaderboard();
+       board.build(Arrays.asList(a, b, c, d));
+       assertEquals(Arrays.asList(d, c, a, b), board.top(10));
+       assertEquals(1, board.rank(d));
+       assertEquals(4, board.rank(b));
+       assertEquals(0, board.rank(student("No", "One", 5)));
+   }
+
+
+   // Random adds, removes and point changes, checked against a sorted list after every step.
+   @Test
+   void matchesASortedListThroughRandomChanges() {
+       Random random = new Random(42);
+       classroomRewardsTracker.Leaderboard board = new classroomRewardsTracker.Leaderboard();
+       List<classroomRewardsTracker.Student> expected = new ArrayList<>();
+       for (int i = 0; i < 200; i++) expected.add(student("S" + i, "L" + random.nextInt(20), random.nextInt(50)));
+       board.build(expected);
+
+
+       for (int step = 0; step < 2000; step++) {
+           int op = random.nextInt(3);
+           if (op == 0 || expected.isEmpty()) {
+               classroomRewardsTracker.Student s = student("N" + step, "L" + random.nextInt(20), random.nextInt(50));
+               expected.add(s);
+               board.add(s);
+           } else if (op == 1) {
+               classroomRewardsTracker.Student s = expected.remove(random.nextInt(expected.size()));
+               board.remove(s);
+           } else {
+               classroomRewardsTracker.Student s = expected.get(random.nextInt(expected.size()));
+               board.remove(s);
+               s.points += random.nextInt(21) - 10;
+               board.add(s);
+           }
+           expected.sort(classroomRewardsTracker.Leaderboard.ORDER);
+           assertEquals(expected.size(), board.size());
+           if (step % 100 == 0) assertEquals(expected, board.top(Integer.MAX_VALUE));
+           int probe = random.nextInt(expected.size());
+           assertEquals(probe + 1, board.rank(expected.get(probe)));
+       }
+       assertEquals(expected.subList(0, 3), board.top(3));
+   }
+
+
+   @Test
+   void topHandlesAnyK() {
+       classroomRewardsTracker.Leaderboard board = new classroomRewardsTracker.Leaderboard();
+       assertEquals(Collections.emptyList(), board.top(Integer.MAX_VALUE));
+       board.add(student("A", "One", 1));
+       assertEquals(Collections.emptyList(), board.top(0));
+       assertEquals(1, board.top(Integer.MAX_VALUE).size());
+   }
+
+
+   @Test
+   void mergeTopInterleavesBoards() {
+       List<classroomRewardsTracker.Leaderboard> boards = new ArrayList<>();
+       List<classroomRewardsTracker.Student> everyone = new ArrayList<>();
+       Random random = new Random(7);
+       for (int b = 0; b < 5; b++) {
+           List<classroomRewardsTracker.Student> members = new ArrayList<>();
+           for (int i = 0; i < b * 10; i++) members.add(student("S" + b + "_" + i, "L", random.nextInt(100)));
+           classroomRewardsTracker.Leaderboard board = new classroomRewardsTracker.Leaderboard();
+           board.build(members);
+           boards.add(board);
+           everyone.addAll(members);
+       }
+       everyone.sort(classroomRewardsTracker.Leaderboard.ORDER);
+
+
+       assertEquals(everyone.subList(0, 7), classroomRewardsTracker.Leaderboard.mergeTop(boards, 7));
+       assertEquals(everyone, classroomRewardsTracker.Leaderboard.mergeTop(boards, everyone.size() + 1));
+       assertEquals(Collections.emptyList(), classroomRewardsTracker.Leaderboard.mergeTop(boards, 0));
+       assertEquals(Collections.emptyList(), classroomRewardsTracker.Leaderboard.mergeTop(Collections.emptyList(), 3));
+   }
+
+
+   // A k far above the roster size must not size anything by k.
+   @Test
+   void mergeTopWithHugeKReturnsEveryoneWithoutAllocatingK() {
+       classroomRewardsTracker.Leaderboard a = new classroomRewardsTracker.Leaderboard();
+       classroomRewardsTracker.Leaderboard b = new classroomRewardsTracker.Leaderboard();
+       a.add(student("A", "One", 3));
+       b.add(student("B", "Two", 5));
+       List<classroomRewardsTracker.Student> top = classroomRewardsTracker.Leaderboard.mergeTop(Arrays.asList(a, b), Integer.MAX_VALUE);
+       assertEquals(2, top.size());
+       assertEquals("B Two", top.get(0).getFullName());
+   }
+
+
+   private static classroomRewardsTracker.Student student(String first, String last, int points) {
+       return new classroomRewardsTracker.Student(first, last, points);
+   }
+}
@@ -0,0 +1,86 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class MetricsTest {
+
+
+   // Each value lands in the bucket whose range holds it, and the range is at most 1/16 of it wide.
+   @Test
+   void bucketsCoverEveryValueWithinASixteenth() {
+       Random random = new Random(11);
+       for (int i = 0; i < 200_000; i++) {
+           long v = i < 100_000 ? i : (random.nextLong() >>> 1) >>> random.nextInt(63);
+           assertBucket(v);
+       }
+       assertBucket(Long.MAX_VALUE);
+       for (int shift = 0; shift < 63; shift++) {
+           assertBucket(1L << shift);
+           assertBucket((1L << shift) - 1);
+       }
+   }
+
+
+   @Test
+   void bucketsAreContiguousAndFitTheArray() {
+       assertEquals(0, classroomRewardsTracker.Metrics.Operation.index(0));
+       int last = classroomRewardsTracker.Metrics.Operation.index(Long.MAX_VALUE);
+       assertTrue(last < 64 * 16, "last bucket " + last);
+       assertEquals(Long.MAX_VALUE, classroomRewardsTracker.Metrics.Operation.highest(last));
+       for (int i = 1; i <= last; i++) {
+           long low = classroomRewardsTracker.Metrics.Operation.highest(i - 1) + 1;
+           assertEquals(i, classroomRewardsTracker.Metrics.Operation.index(low), "bucket " + i);
+       }
+   }
+
+
+   @Test
+   void percentilesStayWithinTheBucketError() {
+       classroomRewardsTracker.Metrics.Operation op = new classroomRewardsTracker.Metrics.Operation("test");
+       for (long v = 1; v <= 100_000; v++) op.record(v * 1000);
+
+
+       assertEquals(100_000, op.getCount());
+       assertEquals(50_000.5, op.getMeanMicros(), 1e-6);
+       assertEquals(100_000.0, op.getMaxMicros());
+       assertWithin(50_000, op.getP50Micros());
+       assertWithin(90_000, op.getP90Micros());
+       assertWithin(99_000, op.getP99Micros());
+       assertWithin(99_900, op.getP999Micros());
+       assertTrue(op.getP999Micros() <= op.getMaxMicros());
+   }
+
+
+   @Test
+   void emptyAndResetOperationsReportZero() {
+       classroomRewardsTracker.Metrics.Operation op = new classroomRewardsTracker.Metrics.Operation("test");
+       assertEquals(0, op.getP99Micros());
+       assertEquals(0, op.getMeanMicros());
+       op.record(-5);
+       op.record(7);
+       assertEquals(0, op.percentile(0.5));
+       assertEquals(7, op.percentile(1.0));
+       op.reset();
+       assertEquals(0, op.getCount());
+       assertEquals(0, op.getMaxMicros());
+       assertEquals(0, op.percentile(0.99));
+   }
+
+
+   private static void assertBucket(long v) {
+       int i = classroomRewardsTracker.Metrics.Operation.index(v);
+       long high = classroomRewardsTracker.Metrics.Operation.highest(i);
+       long low = i == 0 ? 0 : classroomRewardsTracker.Metrics.Operation.highest(i - 1) + 1;
+       assertTrue(low <= v && v <= high, v + " outside bucket " + i + " [" + low + ", " + high + "]");
+       assertTrue(high - low <= Math.max(0, v / 16), v + " in a bucket " + (high - low + 1) + " wide");
+   }
+
+
+   // A percentile reports its bucket's highest value, so it may read high by up to 1/16.
+   private static void assertWithin(double expected, double actual) {
+       assertTrue(actual >= expected && actual <= expected * (1 + 1.0 / 16), "expected ~" + expected + " but was " + actual);
+   }
+}
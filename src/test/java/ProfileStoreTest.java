@@ -0,0 +1,116 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+// Runs against profiles.csv in rewards.dataDir (target/test-data) with durable persistence, so
+// every add is written through and a reload reads it back.
+class ProfileStoreTest {
+
+
+   @BeforeEach
+   void clear() {
+       new File(classroomRewardsTracker.ProfileHandler.FILE).delete();
+       classroomRewardsTracker.ProfileStore.reload();
+   }
+
+
+   @Test
+   void loginsIgnoreCaseAndSpaces() {
+       store().add(profile("teacher", "Jane Smith", "jsmith.teacher", "North"));
+       assertEquals("Jane Smith", store().find(" JSmith.Teacher ", "TEACHER").fullName);
+       assertNull(store().find("jsmith.teacher", "student"));
+       assertNull(store().find("jsmith2.teacher", "teacher"));
+   }
+
+
+   @Test
+   void firstProfileWinsAClash() {
+       store().replaceAll(Arrays.asList(
+               profile("student", "Ann Lee", "alee.student", "None"),
+               profile("student", "Ann Leeds", "alee.student", "None")));
+       assertEquals("Ann Lee", store().find("alee.student", "student").fullName);
+       assertEquals(2, store().size());
+   }
+
+
+   @Test
+   void parentLinksIndexEveryLinkedStudent() {
+       store().addAll(Arrays.asList(
+               profile("parent", "Pat Jones", "pjones.parent", "Ann Lee"),
+               profile("parent", "Pat Jones", "pjones.parent", "Bo Lee")));
+       assertNotNull(store().findParentLink("PJones.Parent", " ann lee "));
+       assertNotNull(store().findParentLink("pjones.parent", "Bo Lee"));
+       assertNull(store().findParentLink("pjones.parent", "Cy Lee"));
+       assertNull(store().findParentLink("nobody.parent", "Ann Lee"));
+       assertEquals(new LinkedHashSet<>(Arrays.asList("Ann Lee", "Bo Lee")), store().linkedStudents("pjones.parent"));
+       assertEquals(Collections.emptySet(), store().linkedStudents("nobody.parent"));
+   }
+
+
+   @Test
+   void indexesAreRebuiltFromDisk() {
+       store().add(profile("teacher", "Jane Smith", "jsmith.teacher", "North"));
+       store().add(profile("parent", "Pat Jones", "pjones.parent", "Ann Lee"));
+       classroomRewardsTracker.ProfileStore.reload();
+       assertEquals(2, store().size());
+       assertNotNull(store().find("jsmith.teacher", "teacher"));
+       assertNotNull(store().findParentLink("pjones.parent", "Ann Lee"));
+   }
+
+
+   @Test
+   void generatedUsernamesNeverRepeat() {
+       Set<String> seen = new HashSet<>();
+       for (int i = 0; i < 50; i++) {
+           classroomRewardsTracker.Profile p = profile("student", "John Smith", classroomRewardsTracker.ProfileHandler.generateUsername("John Smith", "student"), "None");
+           store().add(p);
+           assertTrue(seen.add(p.username), p.username);
+       }
+       assertTrue(seen.contains("jsmith.student"));
+       assertTrue(seen.contains("jsmith50.student"));
+   }
+
+
+   // Counters start past names already on disk, and a base that ends in digits is checked
+   // against the index so it cannot land on an older numbered name.
+   @Test
+   void allocationSkipsExistingNames() {
+       store().addAll(Arrays.asList(
+               profile("teacher", "Jane Smith", "jsmith4.teacher", "North"),
+               profile("teacher", "Jo Smith2", "jsmith2.teacher", "North")));
+       classroomRewardsTracker.ProfileStore.reload();
+       assertEquals("jsmith5.teacher", classroomRewardsTracker.ProfileHandler.generateUsername("Jane Smith", "teacher"));
+       assertEquals("jsmith22.teacher", classroomRewardsTracker.ProfileHandler.generateUsername("Jo Smith2", "teacher"));
+   }
+
+
+   // A username someone else took between allocation and the write is allocated again.
+   @Test
+   void addReallocatesATakenUsername() {
+       store().add(profile("student", "Ann Lee", "alee.student", "None"));
+       classroomRewardsTracker.Profile late = profile("student", "Al Lee", "alee.student", "None");
+       store().add(late);
+       assertNotEquals("alee.student", late.username);
+       assertSame(late, store().find(late.username, "student"));
+       assertEquals("Ann Lee", store().find("alee.student", "student").fullName);
+   }
+
+
+   private static classroomRewardsTracker.ProfileStore store() {
+       return classroomRewardsTracker.ProfileStore.get();
+   }
+
+
+   private static classroomRewardsTracker.Profile profile(String role, String fullName, String username, String linkedName) {
+       return new classroomRewardsTracker.Profile(role, fullName, username, linkedName);
+   }
+}
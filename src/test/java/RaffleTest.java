@@ -0,0 +1,109 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+// Students need more than rewards.raffle.threshold (default 50) points to be eligible.
+class RaffleTest {
+
+
+   @Test
+   void ineligibleStudentsHoldNoTickets() {
+       classroomRewardsTracker.Student a = student("a", 60);
+       classroomRewardsTracker.Student b = student("b", 50);
+       classroomRewardsTracker.Student c = student("c", 51);
+       classroomRewardsTracker.Raffle raffle = new classroomRewardsTracker.Raffle();
+       raffle.build(Arrays.asList(a, b, c));
+       assertEquals(Arrays.asList(a, c), raffle.eligible());
+       assertEquals(111, raffle.total());
+       assertTickets(raffle);
+   }
+
+
+   @Test
+   void emptyRaffleDrawsNobody() {
+       classroomRewardsTracker.Raffle raffle = new classroomRewardsTracker.Raffle();
+       raffle.build(new ArrayList<>());
+       assertNull(raffle.draw(new Random(1)));
+       classroomRewardsTracker.Student a = student("a", 60);
+       raffle.update(a);
+       raffle.remove(a);
+       assertEquals(0, raffle.total());
+       assertNull(raffle.draw(new Random(1)));
+   }
+
+
+   // Every ticket is drawn once, so each student must come up exactly as often as its points.
+   // Adds outnumber removes, so the slot arrays grow several times along the way.
+   @Test
+   void everyTicketFindsItsOwnerThroughRandomChanges() {
+       Random random = new Random(3);
+       classroomRewardsTracker.Raffle raffle = new classroomRewardsTracker.Raffle();
+       List<classroomRewardsTracker.Student> roster = new ArrayList<>();
+       for (int i = 0; i < 5; i++) roster.add(student("s" + i, 40 + random.nextInt(40)));
+       raffle.build(roster);
+       assertTickets(raffle);
+
+
+       for (int step = 0; step < 600; step++) {
+           int op = random.nextInt(4);
+           if (op <= 1 || roster.isEmpty()) {
+               classroomRewardsTracker.Student s = student("n" + step, 40 + random.nextInt(40));
+               roster.add(s);
+               raffle.update(s);
+           } else if (op == 2) {
+               raffle.remove(roster.remove(random.nextInt(roster.size())));
+           } else {
+               classroomRewardsTracker.Student s = roster.get(random.nextInt(roster.size()));
+               s.points = 40 + random.nextInt(40);
+               raffle.update(s);
+           }
+           long expected = 0;
+           for (classroomRewardsTracker.Student s : roster) if (s.isRaffleEligible()) expected += s.points;
+           assertEquals(expected, raffle.total());
+           if (step % 25 == 0) assertTickets(raffle);
+       }
+       assertTickets(raffle);
+   }
+
+
+   private static void assertTickets(classroomRewardsTracker.Raffle raffle) {
+       Map<classroomRewardsTracker.Student, Integer> drawn = new IdentityHashMap<>();
+       for (long ticket = 0; ticket < raffle.total(); ticket++) {
+           drawn.merge(raffle.draw(new FixedRandom(ticket)), 1, Integer::sum);
+       }
+       Map<classroomRewardsTracker.Student, Integer> expected = new IdentityHashMap<>();
+       for (classroomRewardsTracker.Student s : raffle.eligible()) expected.put(s, s.points);
+       assertEquals(new HashMap<>(expected), new HashMap<>(drawn));
+   }
+
+
+   private static classroomRewardsTracker.Student student(String name, int points) {
+       return new classroomRewardsTracker.Student(name, "x", points);
+   }
+
+
+   // Hands draw() a chosen ticket.
+   private static class FixedRandom extends Random {
+       private final long ticket;
+
+
+       FixedRandom(long ticket) {
+           this.ticket = ticket;
+       }
+
+
+       @Override
+       public long nextLong(long bound) {
+           return ticket;
+       }
+   }
+}